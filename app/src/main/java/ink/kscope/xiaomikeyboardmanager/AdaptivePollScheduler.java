@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+/**
+ * Polls the connect state when there is no sysfs node to watch. The interval starts
+ * short, doubles every time a poll finds nothing new, and drops back to the minimum when
+ * the state changes or {@link #onActivity()} is called. Polls are also held to a budget
+ * of wakeups and CPU time per window; once it is spent, the next poll waits for the next
+ * window.
+ */
+public class AdaptivePollScheduler {
+
+    public static final long DEFAULT_MIN_INTERVAL_MS = 250;
+    public static final long DEFAULT_MAX_INTERVAL_MS = 60 * 1000;
+    public static final long DEFAULT_BUDGET_WINDOW_MS = 60 * 1000;
+    public static final int DEFAULT_MAX_POLLS_PER_WINDOW = 30;
+    public static final long DEFAULT_MAX_CPU_MS_PER_WINDOW = 500;
+
+    private final Handler mHandler;
+    private final Poller mPoller;
+    private final Runnable mPollRunnable = this::poll;
+    private final LatencyHistogram mPollCost = new LatencyHistogram("poll_cost");
+
+    private long mMinIntervalMs = DEFAULT_MIN_INTERVAL_MS;
+    private long mMaxIntervalMs = DEFAULT_MAX_INTERVAL_MS;
+    private long mBudgetWindowMs = DEFAULT_BUDGET_WINDOW_MS;
+    private int mMaxPollsPerWindow = DEFAULT_MAX_POLLS_PER_WINDOW;
+    private long mMaxCpuMsPerWindow = DEFAULT_MAX_CPU_MS_PER_WINDOW;
+
+    private boolean mRunning;
+    private long mIntervalMs = DEFAULT_MIN_INTERVAL_MS;
+    private int mLastState = Integer.MIN_VALUE;
+    private long mWindowStart;
+    private int mWindowPolls;
+    private long mWindowCpuMs;
+
+    private long mPollCount;
+    private long mChangeCount;
+    private long mDeferredCount;
+    private long mTotalCpuMs;
+
+    public AdaptivePollScheduler(Handler handler, Poller poller) {
+        mHandler = handler;
+        mPoller = poller;
+    }
+
+    public synchronized void setIntervals(long minIntervalMs, long maxIntervalMs) {
+        mMinIntervalMs = minIntervalMs;
+        mMaxIntervalMs = Math.max(minIntervalMs, maxIntervalMs);
+        mIntervalMs = mMinIntervalMs;
+    }
+
+    /**
+     * At most {@code maxPolls} polls and {@code maxCpuMs} of poll CPU time every
+     * {@code windowMs}.
+     */
+    public synchronized void setBudget(long windowMs, int maxPolls, long maxCpuMs) {
+        mBudgetWindowMs = windowMs;
+        mMaxPollsPerWindow = maxPolls;
+        mMaxCpuMsPerWindow = maxCpuMs;
+    }
+
+    public synchronized void start() {
+        if (mRunning) return;
+        mRunning = true;
+        mIntervalMs = mMinIntervalMs;
+        mWindowStart = SystemClock.uptimeMillis();
+        mWindowPolls = 0;
+        mWindowCpuMs = 0;
+        mHandler.post(mPollRunnable);
+    }
+
+    public synchronized void stop() {
+        mRunning = false;
+        mHandler.removeCallbacks(mPollRunnable);
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Something hints the keyboard may have changed, e.g. a USB attach. Polls soon.
+     */
+    public synchronized void onActivity() {
+        if (!mRunning) return;
+        mIntervalMs = mMinIntervalMs;
+        scheduleNext();
+    }
+
+    private void poll() {
+        synchronized (this) {
+            if (!mRunning) return;
+            long now = SystemClock.uptimeMillis();
+            if (now - mWindowStart >= mBudgetWindowMs) {
+                mWindowStart = now;
+                mWindowPolls = 0;
+                mWindowCpuMs = 0;
+            }
+            if (mWindowPolls >= mMaxPollsPerWindow || mWindowCpuMs >= mMaxCpuMsPerWindow) {
+                mDeferredCount++;
+                mHandler.postDelayed(mPollRunnable, mWindowStart + mBudgetWindowMs - now);
+                return;
+            }
+            mWindowPolls++;
+        }
+
+        long startTime = System.nanoTime();
+        long startCpu = SystemClock.currentThreadTimeMillis();
+        int state = mPoller.poll();
+        long cpuMs = SystemClock.currentThreadTimeMillis() - startCpu;
+        mPollCost.record((System.nanoTime() - startTime) / 1000);
+
+        synchronized (this) {
+            boolean changed = state != mLastState;
+            mLastState = state;
+            mPollCount++;
+            mWindowCpuMs += cpuMs;
+            mTotalCpuMs += cpuMs;
+            if (changed) {
+                mChangeCount++;
+                mIntervalMs = mMinIntervalMs;
+            } else {
+                mIntervalMs = Math.min(mIntervalMs * 2, mMaxIntervalMs);
+            }
+            if (mRunning) {
+                scheduleNext();
+            }
+        }
+    }
+
+    private void scheduleNext() {
+        mHandler.removeCallbacks(mPollRunnable);
+        mHandler.postDelayed(mPollRunnable, mIntervalMs);
+    }
+
+    public synchronized long getPollCount() {
+        return mPollCount;
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("fallback polling: running=");
+        pw.print(mRunning);
+        pw.print(" polls=");
+        pw.print(mPollCount);
+        pw.print(" changes=");
+        pw.print(mChangeCount);
+        pw.print(" deferred=");
+        pw.print(mDeferredCount);
+        pw.print(" cpu=");
+        pw.print(mTotalCpuMs);
+        pw.print("ms interval=");
+        pw.print(mIntervalMs);
+        pw.println("ms");
+        mPollCost.dump(pw, prefix);
+    }
+
+    public interface Poller {
+        /**
+         * Queries the keyboard on the handler thread and returns the resulting state.
+         */
+        int poll();
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package ink.kscope.xiaomikeyboardmanager;
+
+/**
+ * Retries up to a fixed number of attempts, doubling the delay between them up to a cap.
+ */
+public class BackoffRetryPolicy implements RetryPolicy {
+
+    private final int mMaxAttempts;
+    private final long mInitialDelayMs;
+    private final long mMaxDelayMs;
+
+    public BackoffRetryPolicy(int maxAttempts, long initialDelayMs, long maxDelayMs) {
+        mMaxAttempts = maxAttempts;
+        mInitialDelayMs = initialDelayMs;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    @Override
+    public long nextDelayMs(int attempts) {
+        if (attempts >= mMaxAttempts) return -1;
+        int shift = Math.min(attempts - 1, 30);
+        return Math.min(mInitialDelayMs << shift, mMaxDelayMs);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import android.os.FileObserver;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns a burst of FileObserver events into at most one pending report scan.
+ * Events outside the mask are dropped; events arriving while a scan is already pending
+ * are merged into it. Events right after our own write to the sysfs node may just be
+ * that write, so their scan waits until the self-write window has closed.
+ *
+ * <p>The observer should watch {@link #OBSERVED_EVENTS} and leave the filtering to the
+ * mask, since which events a sysfs node raises depends on the driver.
+ */
+public class FileEventCoalescer {
+
+    public static final int OBSERVED_EVENTS = FileObserver.ALL_EVENTS;
+    public static final int DEFAULT_EVENT_MASK = FileObserver.ALL_EVENTS;
+    public static final long DEFAULT_DEBOUNCE_MS = 10;
+    public static final long DEFAULT_SELF_WRITE_WINDOW_MS = 50;
+
+    private final ScanScheduler mScheduler;
+    private final AtomicBoolean mScanPending = new AtomicBoolean(false);
+
+    private final AtomicLong mReceivedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mMergedCount = new AtomicLong();
+    private final AtomicLong mDeferredCount = new AtomicLong();
+    private final AtomicLong mScheduledCount = new AtomicLong();
+
+    private volatile int mEventMask = DEFAULT_EVENT_MASK;
+    private volatile long mDebounceMs = DEFAULT_DEBOUNCE_MS;
+    private volatile long mSelfWriteWindowMs = DEFAULT_SELF_WRITE_WINDOW_MS;
+
+    public FileEventCoalescer(ScanScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    public void onEvent(int event) {
+        mReceivedCount.incrementAndGet();
+        if ((event & FileObserver.ALL_EVENTS & mEventMask) == 0) {
+            mDroppedCount.incrementAndGet();
+            return;
+        }
+        long delayMs = mDebounceMs;
+        long lastWrite = XiaomiKeyboardUtil.getLastWriteTime();
+        long sinceWrite = SystemClock.uptimeMillis() - lastWrite;
+        if (lastWrite > 0 && sinceWrite < mSelfWriteWindowMs) {
+            // A real attach or detach can land here too, so look once the window closes
+            mDeferredCount.incrementAndGet();
+            delayMs = Math.max(delayMs, mSelfWriteWindowMs - sinceWrite);
+        }
+        if (!mScanPending.compareAndSet(false, true)) {
+            mMergedCount.incrementAndGet();
+            return;
+        }
+        mScheduledCount.incrementAndGet();
+        mScheduler.scheduleScan(delayMs);
+    }
+
+    /**
+     * Must be called right before the scheduled scan runs, so events that arrive
+     * during the scan schedule exactly one follow-up scan.
+     */
+    public void onScanStarted() {
+        mScanPending.set(false);
+    }
+
+    public void reset() {
+        mScanPending.set(false);
+    }
+
+    public int getEventMask() {
+        return mEventMask;
+    }
+
+    public void setEventMask(int eventMask) {
+        mEventMask = eventMask;
+    }
+
+    public void setDebounceMs(long debounceMs) {
+        mDebounceMs = debounceMs;
+    }
+
+    public void setSelfWriteWindowMs(long windowMs) {
+        mSelfWriteWindowMs = windowMs;
+    }
+
+    public long getReceivedCount() {
+        return mReceivedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public long getMergedCount() {
+        return mMergedCount.get();
+    }
+
+    public long getDeferredCount() {
+        return mDeferredCount.get();
+    }
+
+    public long getScheduledCount() {
+        return mScheduledCount.get();
+    }
+
+    public interface ScanScheduler {
+        void scheduleScan(long delayMs);
+    }
+}
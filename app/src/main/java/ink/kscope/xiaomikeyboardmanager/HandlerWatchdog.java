@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.concurrent.Executor;
+
+/**
+ * Watches the keyboard handler thread from a thread of its own. A heartbeat posted to the
+ * handler measures queue latency, and the oldest USB transfer still in flight measures
+ * transfer time. While either stays over the stall threshold the watchdog escalates one
+ * step per threshold: abort the transfers, reopen the sessions, reset the keyboard host,
+ * restart the handler thread. A heartbeat that comes back in time ends the episode.
+ */
+public class HandlerWatchdog {
+
+    private static final String TAG = "HandlerWatchdog";
+
+    public static final long DEFAULT_CHECK_INTERVAL_MS = 500;
+    // Slack over the query deadline for the check interval and the work around the query
+    public static final long DEFAULT_STALL_MARGIN_MS = 2 * DEFAULT_CHECK_INTERVAL_MS;
+    // A healthy query holds the handler for at most its deadline, retries included
+    public static final long DEFAULT_STALL_THRESHOLD_MS =
+            KeyboardController.DEFAULT_QUERY_DEADLINE_MS + DEFAULT_STALL_MARGIN_MS;
+
+    public static final int LEVEL_NONE = 0;
+    public static final int LEVEL_ABORT_TRANSFER = 1;
+    public static final int LEVEL_REOPEN_SESSION = 2;
+    public static final int LEVEL_HOST_RESET = 3;
+    public static final int LEVEL_RESTART_THREAD = 4;
+
+    private static final String[] LEVEL_NAMES = {
+            "none", "abort_transfer", "reopen_session", "host_reset", "restart_thread"};
+    private static final int HISTORY_SIZE = 8;
+
+    private final Recovery mRecovery;
+    private final Runnable mHeartbeat = this::onHeartbeat;
+    private final Runnable mCheckRunnable = this::checkAndReschedule;
+    private final LatencyHistogram mQueueLatency = new LatencyHistogram("handler_latency");
+
+    private volatile long mCheckIntervalMs = DEFAULT_CHECK_INTERVAL_MS;
+    private volatile long mStallThresholdMs = DEFAULT_STALL_THRESHOLD_MS;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    // Guarded by this
+    private Executor mTarget;
+    private long mHeartbeatPostTime;
+    private boolean mHeartbeatPending;
+    private int mLevel = LEVEL_NONE;
+    private long mLastEscalationTime;
+    private final long[] mEscalationCounts = new long[LEVEL_NAMES.length];
+    // Ring of the latest escalations: uptime, level and stall length
+    private final long[] mHistoryTime = new long[HISTORY_SIZE];
+    private final int[] mHistoryLevel = new int[HISTORY_SIZE];
+    private final long[] mHistoryStallMs = new long[HISTORY_SIZE];
+    private int mHistoryCount;
+
+    public HandlerWatchdog(Recovery recovery) {
+        mRecovery = recovery;
+    }
+
+    public void setCheckIntervalMs(long intervalMs) {
+        mCheckIntervalMs = intervalMs;
+    }
+
+    /**
+     * How long the heartbeat or a transfer may take before the watchdog steps in, and
+     * how long each step gets before the next one.
+     */
+    public void setStallThresholdMs(long thresholdMs) {
+        mStallThresholdMs = thresholdMs;
+    }
+
+    /**
+     * Heartbeats go to {@code target}, which should run them on the watched thread.
+     * Called again after the thread is restarted.
+     */
+    public synchronized void setTarget(Executor target) {
+        mTarget = target;
+        mHeartbeatPending = false;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) return;
+        mThread = new HandlerThread("keyboard_watchdog");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.postDelayed(mCheckRunnable, mCheckIntervalMs);
+    }
+
+    public synchronized void stop() {
+        if (mThread == null) return;
+        mHandler.removeCallbacks(mCheckRunnable);
+        mThread.quitSafely();
+        mThread = null;
+        mHandler = null;
+    }
+
+    private void checkAndReschedule() {
+        check(SystemClock.uptimeMillis());
+        synchronized (this) {
+            if (mHandler != null) {
+                mHandler.postDelayed(mCheckRunnable, mCheckIntervalMs);
+            }
+        }
+    }
+
+    private synchronized void onHeartbeat() {
+        if (!mHeartbeatPending) return;
+        mHeartbeatPending = false;
+        mQueueLatency.record((SystemClock.uptimeMillis() - mHeartbeatPostTime) * 1000);
+    }
+
+    /**
+     * One watchdog tick at uptime {@code now}.
+     */
+    void check(long now) {
+        int level;
+        long stallMs;
+        synchronized (this) {
+            long heartbeatMs = mHeartbeatPending ? now - mHeartbeatPostTime : 0;
+            stallMs = Math.max(heartbeatMs, mRecovery.getOldestTransferMs());
+            if (stallMs < mStallThresholdMs) {
+                if (mLevel != LEVEL_NONE) {
+                    Log.i(TAG, "handler recovered at " + LEVEL_NAMES[mLevel]);
+                    mLevel = LEVEL_NONE;
+                }
+                if (!mHeartbeatPending && mTarget != null) {
+                    mHeartbeatPending = true;
+                    mHeartbeatPostTime = now;
+                    mTarget.execute(mHeartbeat);
+                }
+                return;
+            }
+            if (mLevel != LEVEL_NONE && now - mLastEscalationTime < mStallThresholdMs) {
+                return;
+            }
+            mLevel = Math.min(mLevel + 1, LEVEL_RESTART_THREAD);
+            mLastEscalationTime = now;
+            level = mLevel;
+            record(now, level, stallMs);
+            if (level == LEVEL_RESTART_THREAD) {
+                // The new thread gets a fresh episode; a stall there starts over
+                mLevel = LEVEL_NONE;
+                mHeartbeatPending = false;
+            }
+        }
+        Log.w(TAG, "handler stalled " + stallMs + "ms, escalating to " + LEVEL_NAMES[level]);
+        switch (level) {
+            case LEVEL_ABORT_TRANSFER:
+                mRecovery.abortTransfers();
+                break;
+            case LEVEL_REOPEN_SESSION:
+                mRecovery.reopenSessions();
+                break;
+            case LEVEL_HOST_RESET:
+                mRecovery.resetHost();
+                break;
+            case LEVEL_RESTART_THREAD:
+                mRecovery.restartThread();
+                break;
+        }
+    }
+
+    private void record(long now, int level, long stallMs) {
+        mEscalationCounts[level]++;
+        int slot = mHistoryCount % HISTORY_SIZE;
+        mHistoryTime[slot] = now;
+        mHistoryLevel[slot] = level;
+        mHistoryStallMs[slot] = stallMs;
+        mHistoryCount++;
+    }
+
+    public synchronized int getLevel() {
+        return mLevel;
+    }
+
+    public synchronized long getEscalationCount(int level) {
+        return mEscalationCounts[level];
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("watchdog: level=");
+        pw.print(LEVEL_NAMES[mLevel]);
+        for (int level = LEVEL_ABORT_TRANSFER; level <= LEVEL_RESTART_THREAD; level++) {
+            pw.print(' ');
+            pw.print(LEVEL_NAMES[level]);
+            pw.print('=');
+            pw.print(mEscalationCounts[level]);
+        }
+        pw.println();
+        int first = Math.max(0, mHistoryCount - HISTORY_SIZE);
+        for (int i = first; i < mHistoryCount; i++) {
+            int slot = i % HISTORY_SIZE;
+            pw.print(prefix);
+            pw.print("  at ");
+            pw.print(mHistoryTime[slot]);
+            pw.print(": ");
+            pw.print(LEVEL_NAMES[mHistoryLevel[slot]]);
+            pw.print(" after ");
+            pw.print(mHistoryStallMs[slot]);
+            pw.println("ms");
+        }
+        mQueueLatency.dump(pw, prefix);
+    }
+
+    public interface Recovery {
+        /**
+         * How long the oldest USB transfer still in flight has been running, or 0.
+         */
+        long getOldestTransferMs();
+
+        void abortTransfers();
+
+        void reopenSessions();
+
+        void resetHost();
+
+        /**
+         * Replaces the watched thread, then calls {@link #setTarget} with the new one.
+         */
+        void restartThread();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Schedules keyboard host resets while the USB device is missing. At most one reset is
+ * pending at a time; each reset that doesn't bring the device back doubles the delay
+ * before the next one, up to a cap, and finding the device cancels them and resets the
+ * delay.
+ */
+public class HostResetScheduler {
+
+    private static final String TAG = "HostResetScheduler";
+
+    public static final long DEFAULT_INITIAL_DELAY_MS = 20000;
+    public static final long DEFAULT_MAX_DELAY_MS = 5 * 60 * 1000;
+
+    private final KeyboardStateDebouncer.Scheduler mScheduler;
+    private final Runnable mResetAction;
+    private final Runnable mResetRunnable = this::doReset;
+
+    private long mInitialDelayMs = DEFAULT_INITIAL_DELAY_MS;
+    private long mMaxDelayMs = DEFAULT_MAX_DELAY_MS;
+    private long mNextDelayMs = DEFAULT_INITIAL_DELAY_MS;
+    private boolean mScheduled;
+    private int mResetCount;
+
+    public HostResetScheduler(Handler handler, KeyboardStats stats) {
+        this(new KeyboardStateDebouncer.Scheduler() {
+            @Override
+            public void postDelayed(Runnable runnable, long delayMs) {
+                handler.postDelayed(runnable, delayMs);
+            }
+
+            @Override
+            public void removeCallbacks(Runnable runnable) {
+                handler.removeCallbacks(runnable);
+            }
+        }, () -> {
+            stats.onHostReset();
+            XiaomiKeyboardUtil.resetKeyboardHost();
+        });
+    }
+
+    /**
+     * {@code resetAction} resets the host; it runs through {@code scheduler}.
+     */
+    HostResetScheduler(KeyboardStateDebouncer.Scheduler scheduler, Runnable resetAction) {
+        mScheduler = scheduler;
+        mResetAction = resetAction;
+    }
+
+    public synchronized void setDelays(long initialDelayMs, long maxDelayMs) {
+        mInitialDelayMs = initialDelayMs;
+        mMaxDelayMs = Math.max(initialDelayMs, maxDelayMs);
+        mNextDelayMs = mInitialDelayMs;
+    }
+
+    public synchronized void onDeviceMissing() {
+        if (mScheduled) return;
+        mScheduled = true;
+        mScheduler.postDelayed(mResetRunnable, mNextDelayMs);
+    }
+
+    public synchronized void onDeviceFound() {
+        cancel();
+        mNextDelayMs = mInitialDelayMs;
+    }
+
+    public synchronized void cancel() {
+        mScheduler.removeCallbacks(mResetRunnable);
+        mScheduled = false;
+    }
+
+    public synchronized int getResetCount() {
+        return mResetCount;
+    }
+
+    private void doReset() {
+        synchronized (this) {
+            if (!mScheduled) return;
+            mResetCount++;
+            mNextDelayMs = Math.min(mNextDelayMs * 2, mMaxDelayMs);
+            Log.i(TAG, "reset keyboard host, next delay " + mNextDelayMs + "ms");
+            // Keep trying until onDeviceFound() or cancel(); nothing else may report the
+            // device missing again
+            mScheduler.postDelayed(mResetRunnable, mNextDelayMs);
+        }
+        mResetAction.run();
+    }
+}
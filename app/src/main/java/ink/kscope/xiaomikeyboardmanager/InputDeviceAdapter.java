@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import android.view.InputDevice;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * Rows of the input device panel. Lists are diffed off the main thread, so only rows
+ * whose device changed are rebound.
+ */
+public class InputDeviceAdapter extends ListAdapter<InputDeviceAdapter.Row,
+        InputDeviceAdapter.ViewHolder> {
+
+    private static final DiffUtil.ItemCallback<Row> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<Row>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Row oldRow, @NonNull Row newRow) {
+            return oldRow.id == newRow.id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Row oldRow, @NonNull Row newRow) {
+            return oldRow.equals(newRow);
+        }
+    };
+
+    public InputDeviceAdapter() {
+        super(DIFF_CALLBACK);
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.item_input_device, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        Row row = getItem(position);
+        holder.mName.setText(row.id + " " + row.name);
+        holder.mInfo.setText(row.vendorId + ":" + row.productId + " enabled=" + row.enabled);
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView mName;
+        final TextView mInfo;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            mName = itemView.findViewById(R.id.deviceName);
+            mInfo = itemView.findViewById(R.id.deviceInfo);
+        }
+    }
+
+    /**
+     * What the panel shows of one input device, copied out so it can be compared later.
+     */
+    public static final class Row {
+        public final int id;
+        public final String name;
+        public final int vendorId;
+        public final int productId;
+        public final boolean enabled;
+
+        public Row(InputDevice device) {
+            id = device.getId();
+            name = device.getName();
+            vendorId = device.getVendorId();
+            productId = device.getProductId();
+            enabled = device.isEnabled();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Row)) return false;
+            Row other = (Row) o;
+            return id == other.id && vendorId == other.vendorId
+                    && productId == other.productId && enabled == other.enabled
+                    && (name == null ? other.name == null : name.equals(other.name));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = id;
+            result = 31 * result + (name != null ? name.hashCode() : 0);
+            result = 31 * result + vendorId;
+            result = 31 * result + productId;
+            return 31 * result + (enabled ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import ink.kscope.xiaomikeyboardmanager.protocol.KeyboardCommand;
+import ink.kscope.xiaomikeyboardmanager.protocol.KeyboardProtocol;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command/response exchanges on the vendor interface with several commands in flight.
+ * Queued commands are written back to back, then responses are read and each goes to the
+ * oldest outstanding request waiting for its command and sub-command bytes, so N commands
+ * cost about one round trip instead of N. Frames nobody waits for go to the subscribers.
+ *
+ * <p>I/O happens in {@link #pump()}, on whichever thread calls it. {@link #send} can be
+ * called from any thread and schedules a pump on the executor; {@link #sendNow} pumps on
+ * the calling thread instead.
+ */
+public class KeyboardCommandChannel {
+
+    public static final long DEFAULT_TIMEOUT_MS = 500;
+
+    private final Link mLink;
+    private final Executor mExecutor;
+    private final Runnable mPumpRunnable = this::pump;
+    private final CopyOnWriteArrayList<FrameListener> mSubscribers = new CopyOnWriteArrayList<>();
+
+    // Guarded by this
+    private final ArrayDeque<Request> mQueue = new ArrayDeque<>();
+    private boolean mPumpScheduled;
+
+    // Guarded by mPumpLock
+    private final Object mPumpLock = new Object();
+    private final ArrayList<Request> mInFlight = new ArrayList<>();
+    private final ArrayList<Request> mToWrite = new ArrayList<>();
+    private final byte[] mRecBuf = new byte[KeyboardProtocol.FRAME_SIZE];
+    private boolean mPumping;
+
+    // Bumped by abort(); a pump stops once it differs from the value it started with
+    private final AtomicInteger mAbortGeneration = new AtomicInteger();
+
+    private final AtomicLong mSentCount = new AtomicLong();
+    private final AtomicLong mMatchedCount = new AtomicLong();
+    private final AtomicLong mTimeoutCount = new AtomicLong();
+    private final AtomicLong mUnsolicitedCount = new AtomicLong();
+
+    public KeyboardCommandChannel(Link link, Executor executor) {
+        mLink = link;
+        mExecutor = executor;
+    }
+
+    public CompletableFuture<byte[]> send(KeyboardCommand command) {
+        return send(command, DEFAULT_TIMEOUT_MS);
+    }
+
+    public CompletableFuture<byte[]> send(KeyboardCommand command, long timeoutMs) {
+        if (!command.isUsbCommand()) {
+            throw new IllegalArgumentException(command + " is not a USB command");
+        }
+        return send(command.getBytes(), command.getResponseCommand(),
+                command.getResponseSubCommand(), timeoutMs);
+    }
+
+    /**
+     * Like {@link #send(KeyboardCommand, long)}, but pumps on the calling thread until the
+     * command is answered instead of scheduling a pump. The returned future is done unless
+     * this is called from within a pump, in which case a pump is scheduled after all.
+     */
+    public CompletableFuture<byte[]> sendNow(KeyboardCommand command, long timeoutMs) {
+        if (!command.isUsbCommand()) {
+            throw new IllegalArgumentException(command + " is not a USB command");
+        }
+        Request request = newRequest(command.getBytes(), command.getResponseCommand(),
+                command.getResponseSubCommand(), timeoutMs);
+        synchronized (this) {
+            mQueue.add(request);
+        }
+        pumpUntil(request.mFuture);
+        if (!request.mFuture.isDone()) {
+            schedulePump();
+        }
+        return request.mFuture;
+    }
+
+    public CompletableFuture<byte[]> send(byte[] frame, byte responseCommand, long timeoutMs) {
+        return send(frame, responseCommand, KeyboardProtocol.SUB_COMMAND_ANY, timeoutMs);
+    }
+
+    /**
+     * Queues {@code frame} and returns a future for the first frame with command byte
+     * {@code responseCommand} and sub-command byte {@code responseSubCommand} read after it
+     * is written, padded to a full frame. The future fails with a {@link TimeoutException}
+     * if none arrives within {@code timeoutMs}, or an {@link IOException} if the write
+     * fails. {@code frame} must not be modified afterwards.
+     */
+    public CompletableFuture<byte[]> send(byte[] frame, byte responseCommand,
+            int responseSubCommand, long timeoutMs) {
+        Request request = newRequest(frame, responseCommand, responseSubCommand, timeoutMs);
+        synchronized (this) {
+            mQueue.add(request);
+        }
+        schedulePump();
+        return request.mFuture;
+    }
+
+    private static Request newRequest(byte[] frame, byte responseCommand,
+            int responseSubCommand, long timeoutMs) {
+        return new Request(frame, responseCommand, responseSubCommand,
+                System.nanoTime() + timeoutMs * 1000000);
+    }
+
+    private void schedulePump() {
+        synchronized (this) {
+            if (mPumpScheduled) return;
+            mPumpScheduled = true;
+        }
+        mExecutor.execute(mPumpRunnable);
+    }
+
+    /**
+     * Gets every frame read that isn't a response to an outstanding request.
+     */
+    public void subscribe(FrameListener listener) {
+        mSubscribers.addIfAbsent(listener);
+    }
+
+    public void unsubscribe(FrameListener listener) {
+        mSubscribers.remove(listener);
+    }
+
+    /**
+     * Fails every queued and outstanding request and stops the pump in progress after its
+     * current transfer. Requests sent afterwards aren't affected. Safe to call from any
+     * thread.
+     */
+    public void abort() {
+        mAbortGeneration.incrementAndGet();
+        ArrayList<Request> queued;
+        synchronized (this) {
+            queued = new ArrayList<>(mQueue);
+            mQueue.clear();
+        }
+        CancellationException e = new CancellationException("aborted");
+        for (Request request : queued) {
+            request.mFuture.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Runs exchanges until no request is queued or outstanding.
+     */
+    public void pump() {
+        pumpUntil(null);
+    }
+
+    /**
+     * Runs exchanges until {@code until} is done, or until nothing is left if it is null.
+     * Does nothing if called from within a pump, e.g. by a subscriber.
+     */
+    public void pumpUntil(CompletableFuture<?> until) {
+        synchronized (mPumpLock) {
+            if (mPumping) return;
+            mPumping = true;
+            int generation = mAbortGeneration.get();
+            try {
+                while ((until == null || !until.isDone()) && pumpOnce(generation)) {
+                    // Keep going
+                }
+            } finally {
+                mPumping = false;
+            }
+        }
+    }
+
+    // Returns false once there is nothing left to do
+    private boolean pumpOnce(int generation) {
+        ArrayList<Request> toWrite = mToWrite;
+        toWrite.clear();
+        synchronized (this) {
+            mPumpScheduled = false;
+            toWrite.addAll(mQueue);
+            mQueue.clear();
+        }
+        if (mAbortGeneration.get() != generation) {
+            failAll(toWrite, new CancellationException("aborted"));
+            return false;
+        }
+        if (!toWrite.isEmpty() && !mLink.open()) {
+            failAll(toWrite, new IOException("keyboard not available"));
+            return !mInFlight.isEmpty();
+        }
+        for (Request request : toWrite) {
+            if (request.mFuture.isDone()) continue;
+            int timeoutMs = (int) Math.max(1, request.remainingMs(System.nanoTime()));
+            if (mLink.write(request.mFrame, timeoutMs)) {
+                mSentCount.incrementAndGet();
+                mInFlight.add(request);
+            } else {
+                request.mFuture.completeExceptionally(new IOException("write failed"));
+            }
+        }
+        expire(System.nanoTime());
+        if (mInFlight.isEmpty()) {
+            synchronized (this) {
+                return !mQueue.isEmpty();
+            }
+        }
+
+        long earliestMs = Long.MAX_VALUE;
+        long now = System.nanoTime();
+        for (Request request : mInFlight) {
+            earliestMs = Math.min(earliestMs, request.remainingMs(now));
+        }
+        int length = mLink.read(mRecBuf, (int) Math.max(1, earliestMs));
+        if (length > KeyboardProtocol.OFFSET_COMMAND) {
+            dispatch(length);
+        }
+        expire(System.nanoTime());
+        return true;
+    }
+
+    private void dispatch(int length) {
+        byte command = mRecBuf[KeyboardProtocol.OFFSET_COMMAND];
+        int subCommand = length > KeyboardProtocol.OFFSET_SUB_COMMAND
+                ? mRecBuf[KeyboardProtocol.OFFSET_SUB_COMMAND] : KeyboardProtocol.SUB_COMMAND_ANY;
+        for (int i = 0; i < mInFlight.size(); i++) {
+            Request request = mInFlight.get(i);
+            if (request.matches(command, subCommand)) {
+                mInFlight.remove(i);
+                mMatchedCount.incrementAndGet();
+                // Padded with zeros to a full frame, like a transfer that filled the buffer
+                byte[] response = new byte[KeyboardProtocol.FRAME_SIZE];
+                System.arraycopy(mRecBuf, 0, response, 0, length);
+                request.mFuture.complete(response);
+                return;
+            }
+        }
+        mUnsolicitedCount.incrementAndGet();
+        for (FrameListener listener : mSubscribers) {
+            listener.onFrame(mRecBuf, length);
+        }
+    }
+
+    private void expire(long now) {
+        for (int i = mInFlight.size() - 1; i >= 0; i--) {
+            Request request = mInFlight.get(i);
+            if (request.remainingMs(now) <= 0) {
+                mInFlight.remove(i);
+                mTimeoutCount.incrementAndGet();
+                request.mFuture.completeExceptionally(new TimeoutException(
+                        "no response " + request.mResponseCommand));
+            }
+        }
+    }
+
+    private void failAll(ArrayList<Request> toWrite, Exception e) {
+        for (Request request : toWrite) {
+            request.mFuture.completeExceptionally(e);
+        }
+        for (Request request : mInFlight) {
+            request.mFuture.completeExceptionally(e);
+        }
+        mInFlight.clear();
+    }
+
+    public long getSentCount() {
+        return mSentCount.get();
+    }
+
+    public long getMatchedCount() {
+        return mMatchedCount.get();
+    }
+
+    public long getTimeoutCount() {
+        return mTimeoutCount.get();
+    }
+
+    public long getUnsolicitedCount() {
+        return mUnsolicitedCount.get();
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("commands: sent=");
+        pw.print(mSentCount.get());
+        pw.print(" matched=");
+        pw.print(mMatchedCount.get());
+        pw.print(" timeouts=");
+        pw.print(mTimeoutCount.get());
+        pw.print(" unsolicited=");
+        pw.println(mUnsolicitedCount.get());
+    }
+
+    private static class Request {
+        final byte[] mFrame;
+        final byte mResponseCommand;
+        final int mResponseSubCommand;
+        final long mDeadline;
+        final CompletableFuture<byte[]> mFuture = new CompletableFuture<>();
+
+        Request(byte[] frame, byte responseCommand, int responseSubCommand, long deadline) {
+            mFrame = frame;
+            mResponseCommand = responseCommand;
+            mResponseSubCommand = responseSubCommand;
+            mDeadline = deadline;
+        }
+
+        boolean matches(byte command, int subCommand) {
+            return command == mResponseCommand
+                    && (mResponseSubCommand == KeyboardProtocol.SUB_COMMAND_ANY
+                            || (byte) mResponseSubCommand == subCommand);
+        }
+
+        long remainingMs(long now) {
+            return (mDeadline - now) / 1000000;
+        }
+    }
+
+    /**
+     * The vendor interface as the channel uses it. Called only from the pumping thread.
+     */
+    public interface Link {
+        boolean open();
+
+        boolean write(byte[] frame, int timeoutMs);
+
+        /**
+         * Returns the number of bytes read into {@code buf}, or -1 on failure or timeout.
+         */
+        int read(byte[] buf, int timeoutMs);
+    }
+
+    public interface FrameListener {
+        /**
+         * Called on the pumping thread. {@code frame} is reused once this returns.
+         */
+        void onFrame(byte[] frame, int length);
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager;
+
+
+import ink.kscope.xiaomikeyboardmanager.protocol.FrameCaptureRing;
+import ink.kscope.xiaomikeyboardmanager.protocol.FrameDecoder;
+import ink.kscope.xiaomikeyboardmanager.protocol.KeyboardCommand;
+import ink.kscope.xiaomikeyboardmanager.protocol.KeyboardProtocol;
+import ink.kscope.xiaomikeyboardmanager.protocol.KeyboardStateDispatcher;
+import ink.kscope.xiaomikeyboardmanager.protocol.KeyboardStateListener;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Talks the keyboard protocol over a {@link KeyboardTransport} and notifies listeners of
+ * connect state changes. Everything except the report callback runs on the caller's
+ * thread; reports are handed to {@code reportExecutor} so parsing stays on that thread too.
+ */
+public class KeyboardController {
+
+    public static final int DEFAULT_TRANSFER_TIMEOUT_MS = 500;
+    public static final long DEFAULT_QUERY_DEADLINE_MS = 2000;
+    public static final int DEFAULT_QUERY_ATTEMPTS = 2;
+    private static final long REPORT_POLL_WINDOW_MS = 20;
+
+    // Read reports through the transport's stream, falling back to polling if that fails
+    private static final boolean USE_ASYNC_REPORT_READER = true;
+
+    private final KeyboardTransport mTransport;
+    private final Executor mReportExecutor;
+
+    private volatile int mTransferTimeoutMs = DEFAULT_TRANSFER_TIMEOUT_MS;
+    private volatile long mQueryDeadlineMs = DEFAULT_QUERY_DEADLINE_MS;
+    private volatile RetryPolicy mRetryPolicy = new BackoffRetryPolicy(
+            DEFAULT_QUERY_ATTEMPTS, 0, 0);
+    private volatile FrameCaptureRing mCapture;
+    private volatile FaultListener mFaultListener;
+    // System.nanoTime() when the transfer in flight started, or 0
+    private volatile long mTransferStartTime;
+    private volatile boolean mAbortRequested;
+
+    private final byte[] mRecBuf = new byte[KeyboardCommand.FRAME_SIZE];
+    private final KeyboardStats mStats;
+    private final KeyboardStateDispatcher mStateDispatcher;
+
+    private final KeyboardTransport.ReportCallback mReportCallback;
+    private final KeyboardCommandChannel mCommandChannel;
+    // Only touched on the report executor, or the caller's thread when polling
+    private final FrameDecoder mReportDecoder = new FrameDecoder(new FrameDecoder.Listener() {
+        @Override
+        public void onConnectState(int status, byte[] frame, int offset) {
+            onConnectStatus(status, frame, offset);
+        }
+
+        @Override
+        public void onFrame(byte command, byte[] frame, int offset, int length) {
+            // Nothing else on the report stream is acted on yet
+        }
+    });
+
+    public KeyboardController(KeyboardTransport transport, Executor reportExecutor) {
+        this(transport, reportExecutor, new KeyboardStats());
+    }
+
+    /**
+     * {@code stats} may be shared by several controllers.
+     */
+    public KeyboardController(KeyboardTransport transport, Executor reportExecutor,
+            KeyboardStats stats) {
+        mTransport = transport;
+        mReportExecutor = reportExecutor;
+        mStats = stats;
+        mStateDispatcher = new KeyboardStateDispatcher(
+                XiaomiKeyboardManager.KEYBOARD_STATE_DISCONNECTED);
+        mCommandChannel = new KeyboardCommandChannel(new KeyboardCommandChannel.Link() {
+            @Override
+            public boolean open() {
+                return mTransport.openForTransfer();
+            }
+
+            @Override
+            public boolean write(byte[] frame, int timeoutMs) {
+                return sendUsbData(frame, timeoutMs);
+            }
+
+            @Override
+            public int read(byte[] buf, int timeoutMs) {
+                return readUsbData(buf, timeoutMs);
+            }
+        }, reportExecutor);
+        mReportCallback = (data, length) -> {
+            mStats.onReportReceived();
+            capture(FrameCaptureRing.DIRECTION_REPORT, data, length);
+            byte[] report = Arrays.copyOf(data, length);
+            mReportExecutor.execute(() -> {
+                mStats.onDequeue(true);
+                parseReportData(report, report.length);
+            });
+        };
+    }
+
+    public KeyboardTransport getTransport() {
+        return mTransport;
+    }
+
+    public KeyboardStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Exchanges commands on the vendor interface. Pumped on the report executor, which
+     * should be the thread that calls {@link #checkConnectionState()}.
+     */
+    public KeyboardCommandChannel getCommandChannel() {
+        return mCommandChannel;
+    }
+
+    public FrameDecoder getReportDecoder() {
+        return mReportDecoder;
+    }
+
+    /**
+     * Upper bound for a single bulk transfer of the state query.
+     */
+    public void setTransferTimeoutMs(int timeoutMs) {
+        mTransferTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Upper bound for a whole state query, retries included. When it passes the state
+     * becomes {@link XiaomiKeyboardManager#KEYBOARD_STATE_UNKNOWN}.
+     */
+    public void setQueryDeadlineMs(long deadlineMs) {
+        mQueryDeadlineMs = deadlineMs;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Records every frame sent or received into {@code capture}, or stops recording if null.
+     */
+    public void setCapture(FrameCaptureRing capture) {
+        mCapture = capture;
+    }
+
+    /**
+     * Gets the connect state answers that are neither connected nor disconnected.
+     */
+    public void setFaultListener(FaultListener listener) {
+        mFaultListener = listener;
+    }
+
+    private void notifyFault(int status) {
+        FaultListener listener = mFaultListener;
+        if (listener != null) {
+            listener.onFault(status);
+        }
+    }
+
+    private void capture(int direction, byte[] data, int length) {
+        FrameCaptureRing capture = mCapture;
+        if (capture != null) {
+            capture.record(direction, data, length);
+        }
+    }
+
+    private boolean sendUsbData(byte[] data, int timeoutMs) {
+        long startTime = System.nanoTime();
+        mTransferStartTime = startTime;
+        int length;
+        KeyboardTrace.beginSection(KeyboardTrace.SECTION_TRANSFER);
+        try {
+            length = mTransport.write(data, data.length, timeoutMs);
+        } finally {
+            KeyboardTrace.endSection();
+            mTransferStartTime = 0;
+        }
+        mStats.onTransfer(startTime, length != -1);
+        if (length != -1) {
+            capture(FrameCaptureRing.DIRECTION_OUT, data, data.length);
+        }
+        return length != -1;
+    }
+
+    private int readUsbData(byte[] data, int timeoutMs) {
+        long startTime = System.nanoTime();
+        mTransferStartTime = startTime;
+        int length;
+        KeyboardTrace.beginSection(KeyboardTrace.SECTION_TRANSFER);
+        try {
+            length = mTransport.read(data, data.length, timeoutMs);
+        } finally {
+            KeyboardTrace.endSection();
+            mTransferStartTime = 0;
+        }
+        mStats.onTransfer(startTime, length != -1);
+        if (length != -1) {
+            capture(FrameCaptureRing.DIRECTION_IN, data, length);
+        }
+        return length;
+    }
+
+    /**
+     * How long the transfer in flight has been running, or 0 if there is none.
+     */
+    public long getTransferAgeMs() {
+        long startTime = mTransferStartTime;
+        return startTime == 0 ? 0 : (System.nanoTime() - startTime) / 1000000;
+    }
+
+    /**
+     * Makes the query or report poll in progress give up, cutting its current transfer
+     * short. Safe to call from any thread.
+     */
+    public void abort() {
+        mAbortRequested = true;
+        mCommandChannel.abort();
+        mTransport.abort();
+    }
+
+    private int transferTimeout(long deadline) {
+        if (mAbortRequested) return 0;
+        long remainingMs = (deadline - System.nanoTime()) / 1000000;
+        return (int) Math.min(mTransferTimeoutMs, remainingMs);
+    }
+
+    public void checkConnectionState() {
+        mAbortRequested = false;
+        if (!mTransport.openForTransfer()) {
+            return;
+        }
+        KeyboardTrace.beginSection(KeyboardTrace.SECTION_QUERY);
+        try {
+            queryConnectionState();
+        } finally {
+            KeyboardTrace.endSection();
+        }
+    }
+
+    private void queryConnectionState() {
+        long deadline = System.nanoTime() + mQueryDeadlineMs * 1000000;
+        RetryPolicy retryPolicy = mRetryPolicy;
+        int attempts = 0;
+        int timeoutMs;
+        while ((timeoutMs = transferTimeout(deadline)) > 0) {
+            if (attempts > 0) {
+                mStats.onRetry();
+            }
+            attempts++;
+            // Other commands queued on the channel go out in the same round trip
+            CompletableFuture<byte[]> response = mCommandChannel.sendNow(
+                    KeyboardCommand.GET_CONNECT_STATE, timeoutMs);
+            if (response.isDone() && !response.isCompletedExceptionally()) {
+                if (parseConnectState(response.join())) {
+                    return;
+                }
+            } else if (isWriteFailure(response)) {
+                KeyboardTrace.info(KeyboardTrace.EVENT_SEND_FAILED, attempts);
+            }
+            long delayMs = retryPolicy.nextDelayMs(attempts);
+            if (delayMs < 0) {
+                break;
+            }
+            if (delayMs > 0) {
+                sleepUntil(Math.min(System.nanoTime() + delayMs * 1000000, deadline));
+            }
+        }
+        KeyboardTrace.error(KeyboardTrace.EVENT_QUERY_GAVE_UP, attempts);
+        notifyKeyboardStateListeners(XiaomiKeyboardManager.KEYBOARD_STATE_UNKNOWN);
+    }
+
+    private static boolean isWriteFailure(CompletableFuture<byte[]> response) {
+        try {
+            response.getNow(null);
+            return false;
+        } catch (CompletionException e) {
+            return e.getCause() instanceof IOException;
+        } catch (CancellationException e) {
+            return false;
+        }
+    }
+
+    private static void sleepUntil(long time) {
+        long remainingMs = (time - System.nanoTime()) / 1000000;
+        if (remainingMs <= 0) return;
+        try {
+            Thread.sleep(remainingMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean parseConnectState(byte[] recBuf) {
+        return onConnectStatus(KeyboardProtocol.decodeConnectState(recBuf), recBuf, 0);
+    }
+
+    private boolean onConnectStatus(int status, byte[] frame, int offset) {
+        switch (status) {
+            case KeyboardProtocol.STATUS_NOT_CONNECT_STATE:
+                KeyboardTrace.info(KeyboardTrace.EVENT_NOT_CONNECT_STATE,
+                        frame[offset + KeyboardProtocol.OFFSET_COMMAND] & 0xff);
+                return false;
+            case KeyboardProtocol.STATUS_OVER_CHARGED:
+                KeyboardTrace.error(KeyboardTrace.EVENT_OVER_CHARGED, 0);
+                notifyFault(status);
+                return false;
+            case KeyboardProtocol.STATUS_TRX_CHECK_FAILED:
+                KeyboardTrace.error(KeyboardTrace.EVENT_TRX_CHECK_FAILED, 0);
+                notifyFault(status);
+                return false;
+            case KeyboardProtocol.STATUS_PIN_CONNECT_FAILED:
+                KeyboardTrace.error(KeyboardTrace.EVENT_PIN_CONNECT_FAILED, 0);
+                notifyFault(status);
+                return false;
+            case KeyboardProtocol.STATUS_DISCONNECTED:
+                mStats.onStateDecision();
+                notifyKeyboardStateListeners(XiaomiKeyboardManager.KEYBOARD_STATE_DISCONNECTED);
+                return true;
+            case KeyboardProtocol.STATUS_CONNECTED:
+                mStats.onStateDecision();
+                notifyKeyboardStateListeners(XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED);
+                return true;
+            default:
+                KeyboardTrace.info(KeyboardTrace.EVENT_UNHANDLED_CONNECT_STATE,
+                        frame[offset + KeyboardProtocol.OFFSET_CONNECT_STATE] & 0xff);
+                return false;
+        }
+    }
+
+    public void scanReportData() {
+        if (!mTransport.openForReport()) {
+            return;
+        }
+        if (USE_ASYNC_REPORT_READER && mTransport.startReportStream(mReportCallback)) {
+            return;
+        }
+        Arrays.fill(mRecBuf, (byte) 0);
+        // Whatever a previous polling window left half read is stale by now
+        mReportDecoder.reset();
+        mAbortRequested = false;
+        KeyboardTrace.beginSection(KeyboardTrace.SECTION_SCAN);
+        try {
+            pollReports();
+        } finally {
+            KeyboardTrace.endSection();
+        }
+    }
+
+    private void pollReports() {
+        long startTime = System.currentTimeMillis();
+        while (!mAbortRequested) {
+            mTransferStartTime = System.nanoTime();
+            int length = mTransport.readReport(mRecBuf, mRecBuf.length, mTransferTimeoutMs);
+            mTransferStartTime = 0;
+            boolean hasReport = length != -1;
+            if (hasReport || System.currentTimeMillis() - startTime < REPORT_POLL_WINDOW_MS) {
+                if (hasReport) {
+                    capture(FrameCaptureRing.DIRECTION_REPORT, mRecBuf, length);
+                    parseReportData(mRecBuf, length);
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void parseReportData(byte[] recBuf, int length) {
+        KeyboardTrace.beginSection(KeyboardTrace.SECTION_DECODE);
+        try {
+            mReportDecoder.feed(recBuf, 0, length);
+        } finally {
+            KeyboardTrace.endSection();
+        }
+    }
+
+    /**
+     * Feeds a captured frame through the parser as if it had just been received.
+     */
+    public void replayFrame(int direction, byte[] frame) {
+        if (direction == FrameCaptureRing.DIRECTION_IN) {
+            parseConnectState(frame);
+        } else if (direction == FrameCaptureRing.DIRECTION_REPORT) {
+            parseReportData(frame, frame.length);
+        }
+    }
+
+    public void stop() {
+        mTransport.stopReportStream();
+    }
+
+    public int getKeyboardState() {
+        return mStateDispatcher.getState();
+    }
+
+    /**
+     * Starts from a state remembered from an earlier run. Call before adding listeners.
+     */
+    public void restoreState(int state) {
+        mStateDispatcher.setState(state);
+    }
+
+    /**
+     * Adopts a state learned without asking the keyboard, e.g. from sysfs, so the next
+     * query reports changes against it rather than against a stale answer.
+     */
+    public void syncState(int state) {
+        notifyKeyboardStateListeners(state);
+    }
+
+    private void notifyKeyboardStateListeners(int state) {
+        KeyboardTrace.debug(KeyboardTrace.EVENT_STATE, state);
+        KeyboardTrace.beginSection(KeyboardTrace.SECTION_DISPATCH);
+        try {
+            mStateDispatcher.setState(state);
+        } finally {
+            KeyboardTrace.endSection();
+        }
+    }
+
+    public void addKeyboardStateListener(KeyboardStateListener listener) {
+        mStateDispatcher.addListener(listener);
+    }
+
+    public void addKeyboardStateListener(KeyboardStateListener listener,
+            Executor executor) {
+        mStateDispatcher.addListener(listener, executor);
+    }
+
+    public void removeKeyboardStateListener(KeyboardStateListener listener) {
+        mStateDispatcher.removeListener(listener);
+    }
+
+    public interface FaultListener {
+        /**
+         * {@code status} is one of {@code KeyboardProtocol.STATUS_OVER_CHARGED},
+         * {@code STATUS_TRX_CHECK_FAILED} or {@code STATUS_PIN_CONNECT_FAILED}.
+         */
+        void onFault(int status);
+    }
+}
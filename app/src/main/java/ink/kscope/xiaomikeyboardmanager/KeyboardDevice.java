@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import ink.kscope.xiaomikeyboardmanager.protocol.KeyboardStateListener;
+
+import java.util.concurrent.Executor;
+
+/**
+ * One keyboard function tracked by {@link XiaomiKeyboardManager}: its transport, and a
+ * controller with its own state and listeners. All devices share the manager's handler.
+ */
+public class KeyboardDevice {
+
+    private final String mName;
+    private final KeyboardTransport mTransport;
+    private final KeyboardController mController;
+
+    public KeyboardDevice(String name, KeyboardTransport transport, Executor reportExecutor,
+            KeyboardStats stats) {
+        mName = name;
+        mTransport = transport;
+        mController = new KeyboardController(transport, reportExecutor, stats);
+    }
+
+    /**
+     * The USB device name, unique while the device is attached.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    public KeyboardTransport getTransport() {
+        return mTransport;
+    }
+
+    public KeyboardController getController() {
+        return mController;
+    }
+
+    public int getKeyboardState() {
+        return mController.getKeyboardState();
+    }
+
+    /**
+     * Listeners here hear this device's raw state, without the manager's debouncing.
+     */
+    public void addKeyboardStateListener(KeyboardStateListener listener, Executor executor) {
+        mController.addKeyboardStateListener(listener, executor);
+    }
+
+    public void removeKeyboardStateListener(KeyboardStateListener listener) {
+        mController.removeKeyboardStateListener(listener);
+    }
+
+    public void close() {
+        mController.stop();
+        mTransport.close();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import android.hardware.input.InputManager;
+import android.os.Handler;
+import android.util.Log;
+import android.view.InputDevice;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps a vendor/product to input device id index up to date from InputDeviceListener
+ * callbacks, so the keyboard can be found without querying every input device.
+ * Also remembers each device's enabled state to skip redundant enable/disable calls,
+ * and re-applies the wanted keyboard state when the keyboard input device shows up.
+ */
+public class KeyboardInputDeviceTracker implements InputManager.InputDeviceListener {
+
+    private static final String TAG = "KeyboardInputDeviceTracker";
+
+    private final InputManager mInputManager;
+
+    // (vendorId << 16 | productId) -> device id
+    private final HashMap<Integer, Integer> mDeviceIds = new HashMap<>();
+    // device id -> (vendorId << 16 | productId)
+    private final HashMap<Integer, Integer> mDeviceKeys = new HashMap<>();
+    private final HashMap<Integer, Boolean> mDeviceEnabled = new HashMap<>();
+
+    private Boolean mKeyboardEnabled;
+
+    public KeyboardInputDeviceTracker(InputManager inputManager) {
+        mInputManager = inputManager;
+    }
+
+    public void start(Handler handler) {
+        mInputManager.registerInputDeviceListener(this, handler);
+        synchronized (this) {
+            mDeviceIds.clear();
+            mDeviceKeys.clear();
+            mDeviceEnabled.clear();
+            for (int id : mInputManager.getInputDeviceIds()) {
+                updateDevice(id);
+            }
+        }
+    }
+
+    public void stop() {
+        mInputManager.unregisterInputDeviceListener(this);
+    }
+
+    private static int vendorProductKey(int vendorId, int productId) {
+        return (vendorId & 0xffff) << 16 | (productId & 0xffff);
+    }
+
+    public synchronized int getDeviceId(int vendorId, int productId) {
+        Integer id = mDeviceIds.get(vendorProductKey(vendorId, productId));
+        return id != null ? id : -1;
+    }
+
+    public synchronized int getKeyboardDeviceId() {
+        for (Map.Entry<Integer, Integer> entry : mDeviceIds.entrySet()) {
+            int key = entry.getKey();
+            if (XiaomiKeyboardUtil.deviceIsXiaomiKeyboard(key >>> 16, key & 0xffff)) {
+                return entry.getValue();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Enables or disables the keyboard input device. The state is remembered and
+     * applied again if the input device is added later.
+     */
+    public synchronized void setKeyboardEnabled(boolean enabled) {
+        mKeyboardEnabled = enabled;
+        applyKeyboardEnabled();
+    }
+
+    private void applyKeyboardEnabled() {
+        if (mKeyboardEnabled == null) return;
+        int id = getKeyboardDeviceId();
+        if (id < 0) return;
+        boolean enabled = mKeyboardEnabled;
+        if (Boolean.valueOf(enabled).equals(mDeviceEnabled.get(id))) return;
+        if (enabled) mInputManager.enableInputDevice(id);
+        else mInputManager.disableInputDevice(id);
+        mDeviceEnabled.put(id, enabled);
+    }
+
+    private void updateDevice(int id) {
+        InputDevice inputDevice = mInputManager.getInputDevice(id);
+        if (inputDevice == null) {
+            removeDevice(id);
+            return;
+        }
+        int key = vendorProductKey(inputDevice.getVendorId(), inputDevice.getProductId());
+        Integer oldKey = mDeviceKeys.put(id, key);
+        if (oldKey != null && oldKey != key) {
+            removeIndex(id, oldKey);
+        }
+        if (!mDeviceIds.containsKey(key)) {
+            mDeviceIds.put(key, id);
+        }
+        mDeviceEnabled.put(id, inputDevice.isEnabled());
+    }
+
+    private void removeDevice(int id) {
+        Integer key = mDeviceKeys.remove(id);
+        mDeviceEnabled.remove(id);
+        if (key != null) {
+            removeIndex(id, key);
+        }
+    }
+
+    private void removeIndex(int id, int key) {
+        Integer indexed = mDeviceIds.get(key);
+        if (indexed == null || indexed != id) return;
+        mDeviceIds.remove(key);
+        for (Map.Entry<Integer, Integer> entry : mDeviceKeys.entrySet()) {
+            if (entry.getValue() == key) {
+                mDeviceIds.put(key, entry.getKey());
+                break;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onInputDeviceAdded(int deviceId) {
+        updateDevice(deviceId);
+        if (deviceId == getKeyboardDeviceId()) {
+            Log.d(TAG, "keyboard input device added: " + deviceId);
+            applyKeyboardEnabled();
+        }
+    }
+
+    @Override
+    public synchronized void onInputDeviceRemoved(int deviceId) {
+        removeDevice(deviceId);
+    }
+
+    @Override
+    public synchronized void onInputDeviceChanged(int deviceId) {
+        updateDevice(deviceId);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the manager knew about the keyboards when it last settled on a state: the settled
+ * state and, per device, its IDs and endpoint layout. Restored on start so a keyboard that
+ * is still attached can be used before the first query completes.
+ */
+public class KeyboardSnapshot {
+
+    private static final int MAGIC = 0x584b534e; // "XKSN"
+    private static final int VERSION = 1;
+
+    private final int mState;
+    private final List<Device> mDevices;
+
+    public KeyboardSnapshot(int state, List<Device> devices) {
+        mState = state;
+        mDevices = Collections.unmodifiableList(new ArrayList<>(devices));
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public List<Device> getDevices() {
+        return mDevices;
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(mState);
+            out.writeByte(mDevices.size());
+            for (Device device : mDevices) {
+                out.writeUTF(device.name);
+                out.writeShort(device.vendorId);
+                out.writeShort(device.productId);
+                UsbEndpointLayout layout = device.layout;
+                out.writeByte(layout.transferInterfaceId);
+                out.writeByte(layout.transferInAddress);
+                out.writeByte(layout.transferOutAddress);
+                out.writeByte(layout.reportInterfaceId);
+                out.writeByte(layout.reportInAddress);
+            }
+        } catch (IOException e) {
+            // Can't happen with a byte array
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns null if {@code data} isn't a snapshot this version understands.
+     */
+    public static KeyboardSnapshot fromBytes(byte[] data) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                return null;
+            }
+            int state = in.readByte();
+            int count = in.readUnsignedByte();
+            List<Device> devices = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                int vendorId = in.readUnsignedShort();
+                int productId = in.readUnsignedShort();
+                UsbEndpointLayout layout = new UsbEndpointLayout(readId(in), readId(in),
+                        readId(in), readId(in), readId(in));
+                devices.add(new Device(name, vendorId, productId, layout));
+            }
+            return new KeyboardSnapshot(state, devices);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Interface ids and endpoint addresses fit a byte; 0xff stands for NONE
+    private static int readId(DataInputStream in) throws IOException {
+        int id = in.readUnsignedByte();
+        return id == 0xff ? UsbEndpointLayout.NONE : id;
+    }
+
+    /**
+     * Returns null if there is no readable snapshot in {@code file}.
+     */
+    public static KeyboardSnapshot read(File file) {
+        if (!file.exists()) return null;
+        try {
+            return fromBytes(Files.readAllBytes(file.toPath()));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Replaces {@code file} atomically, so a crash mid-write leaves the old snapshot.
+     */
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(toBytes());
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("rename " + tmp + " failed");
+        }
+    }
+
+    public static final class Device {
+        public final String name;
+        public final int vendorId;
+        public final int productId;
+        public final UsbEndpointLayout layout;
+
+        public Device(String name, int vendorId, int productId, UsbEndpointLayout layout) {
+            this.name = name;
+            this.vendorId = vendorId;
+            this.productId = productId;
+            this.layout = layout;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writes snapshots on a background executor so the fsync stays off the keyboard handler
+ * thread. A snapshot posted while an earlier one is still waiting replaces it, so a burst
+ * of state changes costs a single write.
+ */
+public class KeyboardSnapshotWriter {
+
+    private static final String TAG = "KeyboardSnapshotWriter";
+
+    private final Executor mExecutor;
+    private final AtomicReference<Pending> mPending = new AtomicReference<>();
+    // Taking the pending snapshot and writing it happen together, so the newest one lands last
+    private final Object mWriteLock = new Object();
+    private final Runnable mWriteRunnable = this::writePending;
+    private final AtomicLong mWriteCount = new AtomicLong();
+
+    public KeyboardSnapshotWriter(Executor executor) {
+        mExecutor = executor;
+    }
+
+    public void post(File file, KeyboardSnapshot snapshot) {
+        if (mPending.getAndSet(new Pending(file, snapshot)) == null) {
+            mExecutor.execute(mWriteRunnable);
+        }
+    }
+
+    /**
+     * Writes {@code snapshot} on the calling thread, replacing any that is still waiting.
+     */
+    public void flush(File file, KeyboardSnapshot snapshot) {
+        mPending.set(new Pending(file, snapshot));
+        writePending();
+    }
+
+    public long getWriteCount() {
+        return mWriteCount.get();
+    }
+
+    private void writePending() {
+        synchronized (mWriteLock) {
+            Pending pending = mPending.getAndSet(null);
+            if (pending == null) return;
+            try {
+                pending.mSnapshot.write(pending.mFile);
+                mWriteCount.incrementAndGet();
+            } catch (IOException e) {
+                Log.e(TAG, "save snapshot failed", e);
+            }
+        }
+    }
+
+    private static final class Pending {
+        final File mFile;
+        final KeyboardSnapshot mSnapshot;
+
+        Pending(File file, KeyboardSnapshot snapshot) {
+            mFile = file;
+            mSnapshot = snapshot;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import android.os.SystemClock;
+
+import ink.kscope.xiaomikeyboardmanager.protocol.KeyboardProtocol;
+import ink.kscope.xiaomikeyboardmanager.protocol.KeyboardStateDispatcher;
+import ink.kscope.xiaomikeyboardmanager.protocol.KeyboardStateListener;
+
+import java.io.PrintWriter;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sits between {@link KeyboardController} and the manager's listeners. A new state is
+ * only passed on once it has held for its settle time; if the keyboard swings back before
+ * that, the transition is dropped and counted as suppressed. Loose pogo pins then cost
+ * nothing instead of an enable/disable per swing.
+ *
+ * <p>Also remembers the fault states the controller reports (over charged, TRX check
+ * failed, pin connect failed) until the keyboard connects again.
+ *
+ * <p>Raw states and fault reports must come in on the scheduler's thread.
+ */
+public class KeyboardStateDebouncer implements KeyboardStateListener,
+        KeyboardController.FaultListener {
+
+    public static final long DEFAULT_CONNECT_SETTLE_MS = 100;
+    public static final long DEFAULT_DISCONNECT_SETTLE_MS = 500;
+
+    public static final int FAULT_NONE = -1;
+
+    private static final int STATE_NONE = Integer.MIN_VALUE;
+
+    private final Scheduler mScheduler;
+    private final KeyboardStateDispatcher mDispatcher;
+    private final Runnable mCommitRunnable = this::commit;
+
+    private volatile long mConnectSettleMs = DEFAULT_CONNECT_SETTLE_MS;
+    private volatile long mDisconnectSettleMs = DEFAULT_DISCONNECT_SETTLE_MS;
+
+    private volatile int mRawState;
+    private int mPendingState = STATE_NONE;
+    private volatile int mFault = FAULT_NONE;
+    private volatile int mFaultFlags;
+    private volatile long mLastTransitionTime;
+    private volatile KeyboardController.FaultListener mFaultListener;
+
+    private final AtomicLong mCommittedCount = new AtomicLong();
+    private final AtomicLong mSuppressedCount = new AtomicLong();
+    private final AtomicLong mOverChargedCount = new AtomicLong();
+    private final AtomicLong mTrxCheckFailedCount = new AtomicLong();
+    private final AtomicLong mPinConnectFailedCount = new AtomicLong();
+
+    public KeyboardStateDebouncer(int initialState, Scheduler scheduler) {
+        mScheduler = scheduler;
+        mRawState = initialState;
+        mDispatcher = new KeyboardStateDispatcher(initialState);
+    }
+
+    /**
+     * How long a connected state has to hold before listeners hear about it.
+     */
+    public void setConnectSettleMs(long settleMs) {
+        mConnectSettleMs = settleMs;
+    }
+
+    /**
+     * How long a disconnected or unknown state has to hold before listeners hear about it.
+     */
+    public void setDisconnectSettleMs(long settleMs) {
+        mDisconnectSettleMs = settleMs;
+    }
+
+    @Override
+    public void onKeyboardStateChanged(int state) {
+        mRawState = state;
+        if (state == mPendingState) {
+            // Already waiting for this one; don't restart the clock
+            return;
+        }
+        if (mPendingState != STATE_NONE) {
+            mScheduler.removeCallbacks(mCommitRunnable);
+            mPendingState = STATE_NONE;
+            mSuppressedCount.incrementAndGet();
+        }
+        if (state == mDispatcher.getState()) {
+            return;
+        }
+        long settleMs = state == XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED
+                ? mConnectSettleMs : mDisconnectSettleMs;
+        mPendingState = state;
+        if (settleMs <= 0) {
+            commit();
+        } else {
+            mScheduler.postDelayed(mCommitRunnable, settleMs);
+        }
+    }
+
+    private void commit() {
+        int state = mPendingState;
+        if (state == STATE_NONE) return;
+        mPendingState = STATE_NONE;
+        if (state == XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED) {
+            mFault = FAULT_NONE;
+            mFaultFlags = 0;
+        }
+        mLastTransitionTime = SystemClock.elapsedRealtime();
+        KeyboardTrace.beginSection(KeyboardTrace.SECTION_COMMIT);
+        try {
+            if (mDispatcher.setState(state)) {
+                mCommittedCount.incrementAndGet();
+            }
+        } finally {
+            KeyboardTrace.endSection();
+        }
+    }
+
+    @Override
+    public void onFault(int status) {
+        switch (status) {
+            case KeyboardProtocol.STATUS_OVER_CHARGED:
+                mOverChargedCount.incrementAndGet();
+                break;
+            case KeyboardProtocol.STATUS_TRX_CHECK_FAILED:
+                mTrxCheckFailedCount.incrementAndGet();
+                break;
+            case KeyboardProtocol.STATUS_PIN_CONNECT_FAILED:
+                mPinConnectFailedCount.incrementAndGet();
+                break;
+            default:
+                return;
+        }
+        mFault = status;
+        mFaultFlags |= KeyboardStatus.faultFlag(status);
+        KeyboardController.FaultListener listener = mFaultListener;
+        if (listener != null) {
+            listener.onFault(status);
+        }
+    }
+
+    /**
+     * Called on the scheduler's thread after each fault is recorded.
+     */
+    public void setFaultListener(KeyboardController.FaultListener listener) {
+        mFaultListener = listener;
+    }
+
+    /**
+     * Takes {@code state} as settled right away, e.g. when restoring it from an earlier
+     * run. Listeners are told if it differs from the current state.
+     */
+    public void restoreState(int state) {
+        cancel();
+        mRawState = state;
+        mLastTransitionTime = SystemClock.elapsedRealtime();
+        mDispatcher.setState(state);
+    }
+
+    /**
+     * Drops a transition that is still settling.
+     */
+    public void cancel() {
+        mScheduler.removeCallbacks(mCommitRunnable);
+        mPendingState = STATE_NONE;
+    }
+
+    /**
+     * The settled state, as last passed on to listeners.
+     */
+    public int getState() {
+        return mDispatcher.getState();
+    }
+
+    /**
+     * The latest state from the controller, settled or not.
+     */
+    public int getRawState() {
+        return mRawState;
+    }
+
+    /**
+     * The last fault reported since the keyboard was last connected, as a
+     * {@code KeyboardProtocol.STATUS_} constant, or {@link #FAULT_NONE}.
+     */
+    public int getFault() {
+        return mFault;
+    }
+
+    /**
+     * {@code KeyboardStatus.FAULT_} flags for every fault since the keyboard last connected.
+     */
+    public int getFaultFlags() {
+        return mFaultFlags;
+    }
+
+    /**
+     * When the settled state last changed, in {@code SystemClock.elapsedRealtime()} time base.
+     */
+    public long getLastTransitionTime() {
+        return mLastTransitionTime;
+    }
+
+    public long getCommittedCount() {
+        return mCommittedCount.get();
+    }
+
+    public long getSuppressedCount() {
+        return mSuppressedCount.get();
+    }
+
+    public void addListener(KeyboardStateListener listener, Executor executor) {
+        mDispatcher.addListener(listener, executor);
+    }
+
+    public void removeListener(KeyboardStateListener listener) {
+        mDispatcher.removeListener(listener);
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("debounce: raw_state=");
+        pw.print(mRawState);
+        pw.print(" committed=");
+        pw.print(mCommittedCount.get());
+        pw.print(" suppressed=");
+        pw.print(mSuppressedCount.get());
+        pw.print(" connect_settle=");
+        pw.print(mConnectSettleMs);
+        pw.print("ms disconnect_settle=");
+        pw.print(mDisconnectSettleMs);
+        pw.println("ms");
+        pw.print(prefix);
+        pw.print("faults: current=");
+        pw.print(mFault);
+        pw.print(" over_charged=");
+        pw.print(mOverChargedCount.get());
+        pw.print(" trx_check_failed=");
+        pw.print(mTrxCheckFailedCount.get());
+        pw.print(" pin_connect_failed=");
+        pw.println(mPinConnectFailedCount.get());
+    }
+
+    public interface Scheduler {
+        void postDelayed(Runnable runnable, long delayMs);
+
+        void removeCallbacks(Runnable runnable);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-stage latency histograms and error counters for the path from a sysfs event or
+ * report to the service applying the state. Stage timestamps are taken with
+ * {@link System#nanoTime()}.
+ */
+public class KeyboardStats {
+
+    private static final long NONE = 0;
+
+    private final LatencyHistogram mEventToDequeue = new LatencyHistogram("event_to_dequeue");
+    private final LatencyHistogram mTransfer = new LatencyHistogram("usb_transfer");
+    private final LatencyHistogram mDequeueToDecision = new LatencyHistogram("dequeue_to_decision");
+    private final LatencyHistogram mDecisionToListener = new LatencyHistogram("decision_to_listener");
+    private final LatencyHistogram mEventToListener = new LatencyHistogram("event_to_listener");
+
+    private final AtomicLong mTransferCount = new AtomicLong();
+    private final AtomicLong mTransferFailures = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mHostResets = new AtomicLong();
+
+    private volatile long mEventTime = NONE;
+    private volatile long mDequeueTime = NONE;
+    private volatile long mDecisionTime = NONE;
+
+    private static long toMicros(long nanos) {
+        return nanos / 1000;
+    }
+
+    /**
+     * A sysfs event started a new episode.
+     */
+    public void onFileEvent() {
+        mDequeueTime = NONE;
+        mEventTime = System.nanoTime();
+    }
+
+    /**
+     * A report arrived on the transport's stream, which starts an episode of its own.
+     */
+    public void onReportReceived() {
+        mDequeueTime = NONE;
+        mEventTime = System.nanoTime();
+    }
+
+    /**
+     * The keyboard handler picked up work. Work that wasn't triggered by a sysfs event
+     * ends the current episode, so later stages aren't measured against a stale event.
+     */
+    public void onDequeue(boolean fromFileEvent) {
+        long now = System.nanoTime();
+        if (!fromFileEvent) {
+            mEventTime = NONE;
+        }
+        long eventTime = mEventTime;
+        if (eventTime != NONE && mDequeueTime == NONE) {
+            mEventToDequeue.record(toMicros(now - eventTime));
+        }
+        mDequeueTime = now;
+    }
+
+    public void onTransfer(long startTime, boolean success) {
+        mTransfer.record(toMicros(System.nanoTime() - startTime));
+        mTransferCount.incrementAndGet();
+        if (!success) {
+            mTransferFailures.incrementAndGet();
+        }
+    }
+
+    public void onRetry() {
+        mRetries.incrementAndGet();
+    }
+
+    public void onHostReset() {
+        mHostResets.incrementAndGet();
+    }
+
+    /**
+     * The parser decided on a connect state.
+     */
+    public void onStateDecision() {
+        long now = System.nanoTime();
+        long dequeueTime = mDequeueTime;
+        if (dequeueTime != NONE) {
+            mDequeueToDecision.record(toMicros(now - dequeueTime));
+        }
+        mDecisionTime = now;
+    }
+
+    /**
+     * The service applied the settled state, e.g. enabled the input device. Ends the
+     * episode, so nothing later is measured against its event.
+     */
+    public void onListenerComplete() {
+        long now = System.nanoTime();
+        long decisionTime = mDecisionTime;
+        if (decisionTime != NONE) {
+            mDecisionToListener.record(toMicros(now - decisionTime));
+        }
+        long eventTime = mEventTime;
+        if (eventTime != NONE) {
+            mEventToListener.record(toMicros(now - eventTime));
+        }
+        mEventTime = NONE;
+        mDequeueTime = NONE;
+        mDecisionTime = NONE;
+    }
+
+    public long getTransferCount() {
+        return mTransferCount.get();
+    }
+
+    public long getTransferFailures() {
+        return mTransferFailures.get();
+    }
+
+    public long getRetries() {
+        return mRetries.get();
+    }
+
+    public long getHostResets() {
+        return mHostResets.get();
+    }
+
+    public LatencyHistogram getEventToListener() {
+        return mEventToListener;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("transfers=");
+        pw.print(mTransferCount.get());
+        pw.print(" transfer_failures=");
+        pw.print(mTransferFailures.get());
+        pw.print(" retries=");
+        pw.print(mRetries.get());
+        pw.print(" host_resets=");
+        pw.println(mHostResets.get());
+        mEventToDequeue.dump(pw, prefix);
+        mTransfer.dump(pw, prefix);
+        mDequeueToDecision.dump(pw, prefix);
+        mDecisionToListener.dump(pw, prefix);
+        mEventToListener.dump(pw, prefix);
+    }
+}
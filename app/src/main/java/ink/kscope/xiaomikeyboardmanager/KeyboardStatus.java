@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import ink.kscope.xiaomikeyboardmanager.protocol.KeyboardProtocol;
+
+/**
+ * The keyboard status handed out over binder: settled state, faults seen since the
+ * keyboard last connected, charge state and when the state last changed.
+ */
+public final class KeyboardStatus implements Parcelable {
+
+    public static final int FAULT_OVER_CHARGED = 1;
+    public static final int FAULT_TRX_CHECK_FAILED = 1 << 1;
+    public static final int FAULT_PIN_CONNECT_FAILED = 1 << 2;
+
+    public static final int CHARGE_UNKNOWN = -1;
+    public static final int CHARGE_NORMAL = 0;
+    public static final int CHARGE_OVER_CHARGED = 1;
+
+    private final int mState;
+    private final int mFaults;
+    private final long mLastTransitionTime;
+
+    /**
+     * {@code lastTransitionTime} is in {@code SystemClock.elapsedRealtime()} time base.
+     */
+    public KeyboardStatus(int state, int faults, long lastTransitionTime) {
+        mState = state;
+        mFaults = faults;
+        mLastTransitionTime = lastTransitionTime;
+    }
+
+    /**
+     * Maps a {@code KeyboardProtocol.STATUS_} fault to its {@code FAULT_} flag, or 0.
+     */
+    public static int faultFlag(int status) {
+        switch (status) {
+            case KeyboardProtocol.STATUS_OVER_CHARGED:
+                return FAULT_OVER_CHARGED;
+            case KeyboardProtocol.STATUS_TRX_CHECK_FAILED:
+                return FAULT_TRX_CHECK_FAILED;
+            case KeyboardProtocol.STATUS_PIN_CONNECT_FAILED:
+                return FAULT_PIN_CONNECT_FAILED;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * One of the {@code XiaomiKeyboardManager.KEYBOARD_STATE_} constants.
+     */
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * {@code FAULT_} flags.
+     */
+    public int getFaults() {
+        return mFaults;
+    }
+
+    /**
+     * The keyboard only reports whether it is over charged; anything else is normal
+     * while connected and unknown otherwise.
+     */
+    public int getChargeState() {
+        if ((mFaults & FAULT_OVER_CHARGED) != 0) {
+            return CHARGE_OVER_CHARGED;
+        }
+        return mState == XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED
+                ? CHARGE_NORMAL : CHARGE_UNKNOWN;
+    }
+
+    public long getLastTransitionTime() {
+        return mLastTransitionTime;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mState);
+        dest.writeInt(mFaults);
+        dest.writeLong(mLastTransitionTime);
+    }
+
+    public static final Creator<KeyboardStatus> CREATOR = new Creator<KeyboardStatus>() {
+        @Override
+        public KeyboardStatus createFromParcel(Parcel source) {
+            return new KeyboardStatus(source.readInt(), source.readInt(), source.readLong());
+        }
+
+        @Override
+        public KeyboardStatus[] newArray(int size) {
+            return new KeyboardStatus[size];
+        }
+    };
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof KeyboardStatus)) return false;
+        KeyboardStatus other = (KeyboardStatus) o;
+        return mState == other.mState && mFaults == other.mFaults
+                && mLastTransitionTime == other.mLastTransitionTime;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * mState + mFaults) + Long.hashCode(mLastTransitionTime);
+    }
+
+    @Override
+    public String toString() {
+        return "KeyboardStatus{state=" + mState + " faults=" + mFaults
+                + " charge=" + getChargeState() + " last_transition=" + mLastTransitionTime + "}";
+    }
+}
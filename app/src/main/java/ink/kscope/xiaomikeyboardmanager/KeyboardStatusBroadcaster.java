@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.function.Supplier;
+
+/**
+ * Fans keyboard status changes out to binder clients. Changes within the coalesce window
+ * collapse into one broadcast of the latest status, built once and skipped if clients
+ * already have it, so each client gets at most one oneway call per window however often
+ * the keyboard flaps. Each uid may register at most {@link #MAX_CALLBACKS_PER_UID}
+ * callbacks.
+ */
+public class KeyboardStatusBroadcaster {
+
+    private static final String TAG = "KeyboardStatusBroadcaster";
+
+    public static final long DEFAULT_COALESCE_WINDOW_MS = 50;
+    public static final int MAX_CALLBACKS_PER_UID = 8;
+
+    private final Handler mHandler;
+    private final Supplier<KeyboardStatus> mStatusSupplier;
+    private final RemoteCallbackList<IKeyboardStatusCallback> mCallbacks =
+            new RemoteCallbackList<IKeyboardStatusCallback>() {
+        @Override
+        public void onCallbackDied(IKeyboardStatusCallback callback, Object cookie) {
+            onCallbackRemoved(callback.asBinder());
+        }
+    };
+    private final Runnable mBroadcastRunnable = this::broadcast;
+
+    private volatile long mCoalesceWindowMs = DEFAULT_COALESCE_WINDOW_MS;
+
+    // Guarded by this
+    private boolean mPending;
+    private final HashMap<IBinder, Integer> mCallbackUids = new HashMap<>();
+    private final HashMap<Integer, Integer> mUidCallbackCounts = new HashMap<>();
+    // Only touched on the handler thread
+    private KeyboardStatus mLastStatus;
+
+    private long mChangeCount;
+    private long mBroadcastCount;
+    private long mCallCount;
+
+    public KeyboardStatusBroadcaster(Handler handler, Supplier<KeyboardStatus> statusSupplier) {
+        mHandler = handler;
+        mStatusSupplier = statusSupplier;
+    }
+
+    public void setCoalesceWindowMs(long windowMs) {
+        mCoalesceWindowMs = windowMs;
+    }
+
+    /**
+     * Sends {@code callback}, registered by {@code uid}, the current status, then every
+     * change until it is unregistered or its process dies. Throws IllegalStateException
+     * if {@code uid} already has {@link #MAX_CALLBACKS_PER_UID} callbacks.
+     */
+    public void register(IKeyboardStatusCallback callback, int uid) {
+        synchronized (this) {
+            IBinder binder = callback.asBinder();
+            if (mCallbackUids.containsKey(binder)) return;
+            int count = mUidCallbackCounts.getOrDefault(uid, 0);
+            if (count >= MAX_CALLBACKS_PER_UID) {
+                throw new IllegalStateException("uid " + uid + " has too many callbacks");
+            }
+            if (!mCallbacks.register(callback, uid)) return;
+            mCallbackUids.put(binder, uid);
+            mUidCallbackCounts.put(uid, count + 1);
+        }
+        try {
+            callback.onKeyboardStatusChanged(mStatusSupplier.get());
+        } catch (RemoteException e) {
+            // Dead already; RemoteCallbackList drops it
+        }
+    }
+
+    public void unregister(IKeyboardStatusCallback callback) {
+        if (mCallbacks.unregister(callback)) {
+            onCallbackRemoved(callback.asBinder());
+        }
+    }
+
+    private synchronized void onCallbackRemoved(IBinder binder) {
+        Integer uid = mCallbackUids.remove(binder);
+        if (uid == null) return;
+        int count = mUidCallbackCounts.get(uid) - 1;
+        if (count > 0) {
+            mUidCallbackCounts.put(uid, count);
+        } else {
+            mUidCallbackCounts.remove(uid);
+        }
+    }
+
+    /**
+     * Something in the status may have changed. Safe to call from any thread.
+     */
+    public synchronized void onStatusChanged() {
+        mChangeCount++;
+        if (mPending) return;
+        mPending = true;
+        mHandler.postDelayed(mBroadcastRunnable, mCoalesceWindowMs);
+    }
+
+    private void broadcast() {
+        synchronized (this) {
+            mPending = false;
+        }
+        KeyboardStatus status = mStatusSupplier.get();
+        if (status.equals(mLastStatus)) return;
+        mLastStatus = status;
+        int count = mCallbacks.beginBroadcast();
+        try {
+            for (int i = 0; i < count; i++) {
+                try {
+                    mCallbacks.getBroadcastItem(i).onKeyboardStatusChanged(status);
+                } catch (RemoteException e) {
+                    Log.w(TAG, "callback died", e);
+                }
+            }
+        } finally {
+            mCallbacks.finishBroadcast();
+        }
+        synchronized (this) {
+            mBroadcastCount++;
+            mCallCount += count;
+        }
+    }
+
+    public void kill() {
+        mHandler.removeCallbacks(mBroadcastRunnable);
+        mCallbacks.kill();
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("binder clients=");
+        pw.print(mCallbacks.getRegisteredCallbackCount());
+        pw.print(" uids=");
+        pw.print(mUidCallbackCounts.size());
+        pw.print(" changes=");
+        pw.print(mChangeCount);
+        pw.print(" broadcasts=");
+        pw.print(mBroadcastCount);
+        pw.print(" calls=");
+        pw.println(mCallCount);
+    }
+}
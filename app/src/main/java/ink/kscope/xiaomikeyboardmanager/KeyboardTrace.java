@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Diagnostics for the USB hot path. Events are an id plus two primitive arguments,
+ * written into a fixed ring and only formatted when dumped, so recording never boxes,
+ * formats or allocates. Events above the build's ceiling compile away; the runtime level
+ * (default info, debug with {@code setprop log.tag.KeyboardTrace DEBUG}) costs one field
+ * read when it turns an event away. Events at or below the logcat level, errors by
+ * default, also go to logcat.
+ *
+ * <p>The {@code SECTION_} names mark pipeline stages for systrace / Perfetto.
+ */
+public final class KeyboardTrace {
+
+    private static final String TAG = "KeyboardTrace";
+
+    public static final int LEVEL_OFF = 0;
+    public static final int LEVEL_ERROR = 1;
+    public static final int LEVEL_INFO = 2;
+    public static final int LEVEL_DEBUG = 3;
+
+    // Events above this are dead code in the build
+    private static final int BUILD_LEVEL = BuildConfig.DEBUG ? LEVEL_DEBUG : LEVEL_INFO;
+
+    public static final int EVENT_NOT_CONNECT_STATE = 0;
+    public static final int EVENT_OVER_CHARGED = 1;
+    public static final int EVENT_TRX_CHECK_FAILED = 2;
+    public static final int EVENT_PIN_CONNECT_FAILED = 3;
+    public static final int EVENT_UNHANDLED_CONNECT_STATE = 4;
+    public static final int EVENT_SEND_FAILED = 5;
+    public static final int EVENT_QUERY_GAVE_UP = 6;
+    public static final int EVENT_STATE = 7;
+    public static final int EVENT_CLAIM_FAILED = 8;
+    public static final int EVENT_TRANSFER_ENDPOINT_MISSING = 9;
+    public static final int EVENT_TRANSFER_OPEN_FAILED = 10;
+    public static final int EVENT_REPORT_ENDPOINT_MISSING = 11;
+    public static final int EVENT_REPORT_OPEN_FAILED = 12;
+
+    // Indexed by event; the arguments are printed as hex where the name ends with ':'
+    private static final String[] EVENT_NAMES = {
+            "receive connect state error:",
+            "keyboard is over charged",
+            "TRX check failed",
+            "pin connect failed",
+            "unhandled connect state:",
+            "send connect failed",
+            "connect state query gave up, attempts",
+            "connect state",
+            "claim interface failed, interface",
+            "get transfer endpoint failed",
+            "get usb transfer connection failed",
+            "get usb report endpoint failed",
+            "get usb report connection failed",
+    };
+
+    public static final String SECTION_QUERY = "kbd:query";
+    public static final String SECTION_TRANSFER = "kbd:transfer";
+    public static final String SECTION_SCAN = "kbd:scan";
+    public static final String SECTION_DECODE = "kbd:decode";
+    public static final String SECTION_DISPATCH = "kbd:dispatch";
+    public static final String SECTION_SYSFS = "kbd:sysfs";
+    public static final String SECTION_COMMIT = "kbd:commit";
+
+    private static final int RING_SIZE = 256;
+
+    private static final AtomicLong sNext = new AtomicLong();
+    private static final long[] sTime = new long[RING_SIZE];
+    private static final byte[] sLevels = new byte[RING_SIZE];
+    private static final int[] sEvents = new int[RING_SIZE];
+    private static final long[] sArg0 = new long[RING_SIZE];
+    private static final long[] sArg1 = new long[RING_SIZE];
+
+    private static volatile int sLevel =
+            Log.isLoggable(TAG, Log.DEBUG) ? LEVEL_DEBUG : LEVEL_INFO;
+    private static volatile int sLogcatLevel = LEVEL_ERROR;
+
+    private KeyboardTrace() {
+    }
+
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    /**
+     * Events at or below {@code level} are also written to logcat, which formats them.
+     */
+    public static void setLogcatLevel(int level) {
+        sLogcatLevel = level;
+    }
+
+    public static boolean isEnabled(int level) {
+        return level <= BUILD_LEVEL && level <= sLevel;
+    }
+
+    public static void error(int event, long arg0) {
+        event(LEVEL_ERROR, event, arg0, 0);
+    }
+
+    public static void info(int event, long arg0) {
+        event(LEVEL_INFO, event, arg0, 0);
+    }
+
+    public static void debug(int event, long arg0) {
+        event(LEVEL_DEBUG, event, arg0, 0);
+    }
+
+    public static void event(int level, int event, long arg0, long arg1) {
+        if (level > BUILD_LEVEL || level > sLevel) return;
+        int slot = (int) (sNext.getAndIncrement() % RING_SIZE);
+        sTime[slot] = SystemClock.uptimeMillis();
+        sLevels[slot] = (byte) level;
+        sEvents[slot] = event;
+        sArg0[slot] = arg0;
+        sArg1[slot] = arg1;
+        if (level <= sLogcatLevel) {
+            Log.println(level == LEVEL_ERROR ? Log.ERROR : Log.INFO, TAG,
+                    format(event, arg0, arg1));
+        }
+    }
+
+    /**
+     * Starts a systrace section. Must be paired with {@link #endSection()} on the same
+     * thread. {@code name} should be one of the {@code SECTION_} constants.
+     */
+    public static void beginSection(String name) {
+        Trace.beginSection(name);
+    }
+
+    public static void endSection() {
+        Trace.endSection();
+    }
+
+    private static String format(int event, long arg0, long arg1) {
+        String name = EVENT_NAMES[event];
+        if (name.endsWith(":")) {
+            return name + String.format("%02x", arg0);
+        }
+        return name + " " + arg0 + (arg1 != 0 ? " " + arg1 : "");
+    }
+
+    /**
+     * Drops every recorded event.
+     */
+    static void clear() {
+        sNext.set(0);
+    }
+
+    /**
+     * Number of events recorded since the start, including the ones overwritten.
+     */
+    public static long getEventCount() {
+        return sNext.get();
+    }
+
+    public static void dump(PrintWriter pw, String prefix) {
+        long next = sNext.get();
+        pw.print(prefix);
+        pw.print("trace: level=");
+        pw.print(sLevel);
+        pw.print(" build_level=");
+        pw.print(BUILD_LEVEL);
+        pw.print(" events=");
+        pw.println(next);
+        for (long i = Math.max(0, next - RING_SIZE); i < next; i++) {
+            int slot = (int) (i % RING_SIZE);
+            pw.print(prefix);
+            pw.print("  ");
+            pw.print(sTime[slot]);
+            pw.print(sLevels[slot] == LEVEL_ERROR ? " E " : sLevels[slot] == LEVEL_INFO ? " I " : " D ");
+            pw.println(format(sEvents[slot], sArg0[slot], sArg1[slot]));
+        }
+    }
+}
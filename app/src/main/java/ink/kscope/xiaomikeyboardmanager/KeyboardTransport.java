@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager;
+
+/**
+ * The link between {@link KeyboardController} and the keyboard. The vendor interface
+ * carries command/response frames, the report interface carries unsolicited reports.
+ * Transfer methods follow {@code bulkTransfer}: they return the number of bytes moved,
+ * or -1 on failure or timeout.
+ */
+public interface KeyboardTransport {
+
+    boolean openForTransfer();
+
+    boolean openForReport();
+
+    int write(byte[] data, int length, int timeoutMs);
+
+    int read(byte[] data, int length, int timeoutMs);
+
+    int readReport(byte[] data, int length, int timeoutMs);
+
+    /**
+     * Starts delivering reports asynchronously. Returns false if the transport can't,
+     * in which case the caller polls with {@link #readReport}.
+     */
+    boolean startReportStream(ReportCallback callback);
+
+    void stopReportStream();
+
+    /**
+     * Makes the reads in flight give up soon with -1. A write in flight runs to its own
+     * timeout. Safe to call from any thread.
+     */
+    void abort();
+
+    /**
+     * Releases the transport for good; transfers fail from then on. Safe to call from
+     * any thread.
+     */
+    void close();
+
+    interface ReportCallback {
+        /**
+         * Called on a transport thread. {@code data} is reused once this returns.
+         */
+        void onReportReceived(byte[] data, int length);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size log-linear histogram of microsecond values. Every power of two is split
+ * into {@link #SUB_BUCKETS} buckets, so percentiles are accurate to about 25%.
+ * Recording is lock-free and never allocates.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Covers up to 2^32 us, a bit over an hour; larger values land in the last bucket
+    private static final int MAX_EXPONENT = 32;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final String mName;
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    static int bucketIndex(long valueUs) {
+        if (valueUs < SUB_BUCKETS) {
+            return (int) Math.max(valueUs, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(valueUs);
+        int subBucket = (int) (valueUs >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        int index = (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        return Math.min(index, BUCKET_COUNT - 1);
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        long base = 1L << exponent;
+        return base + ((subBucket + 1L) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public void record(long valueUs) {
+        if (valueUs < 0) valueUs = 0;
+        mBuckets.incrementAndGet(bucketIndex(valueUs));
+        mCount.incrementAndGet();
+        mSum.addAndGet(valueUs);
+        long max;
+        while (valueUs > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, valueUs)) break;
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile, or 0 if empty.
+     */
+    public long getPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= target) {
+                return Math.min(bucketUpperBound(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        long count = mCount.get();
+        pw.print(prefix);
+        pw.print(mName);
+        pw.print(": count=");
+        pw.print(count);
+        if (count > 0) {
+            pw.print(" avg=");
+            pw.print(mSum.get() / count);
+            pw.print("us p50=");
+            pw.print(getPercentile(50));
+            pw.print("us p90=");
+            pw.print(getPercentile(90));
+            pw.print("us p99=");
+            pw.print(getPercentile(99));
+            pw.print("us max=");
+            pw.print(mMax.get());
+            pw.print("us");
+        }
+        pw.println();
+    }
+}
@@ -17,32 +17,119 @@
 package ink.kscope.xiaomikeyboardmanager;
 
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.hardware.input.InputManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.InputDevice;
 import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 public class MainActivity extends AppCompatActivity {
 
+    private static final String TAG = "MainActivity";
+
+    // Input device events closer together than this collapse into one refresh
+    private static final long DEVICE_REFRESH_THROTTLE_MS = 250;
+    private static final long STATS_REFRESH_INTERVAL_MS = 1000;
+
     private TextView mTextView;
-    private TextView mTextView2;
-    private boolean mKeyboardEnabled;
+    private InputDeviceAdapter mAdapter;
 
     InputManager mInputManager;
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Binder calls to input and keyboard services run here, never on the main thread
+    private final ExecutorService mQueryExecutor = Executors.newSingleThreadExecutor(
+            r -> new Thread(r, "main_activity_query"));
+    private final Runnable mRefreshDevicesRunnable = this::refreshInputDevices;
+    private final Runnable mRefreshStatsRunnable = this::refreshStats;
+    private boolean mDeviceRefreshPending;
+    private boolean mStarted;
+
+    private volatile IKeyboardManager mKeyboardManager;
+    // Only touched on the main thread
+    private KeyboardStatus mStatus;
+    private TransferStats mTransferStats;
+
+    private final InputManager.InputDeviceListener mInputDeviceListener =
+            new InputManager.InputDeviceListener() {
+        @Override
+        public void onInputDeviceAdded(int deviceId) {
+            scheduleDeviceRefresh();
+        }
+
+        @Override
+        public void onInputDeviceRemoved(int deviceId) {
+            scheduleDeviceRefresh();
+        }
+
+        @Override
+        public void onInputDeviceChanged(int deviceId) {
+            scheduleDeviceRefresh();
+        }
+    };
+
+    private final IKeyboardStatusCallback.Stub mStatusCallback = new IKeyboardStatusCallback.Stub() {
+        @Override
+        public void onKeyboardStatusChanged(KeyboardStatus status) {
+            mHandler.post(() -> {
+                mStatus = status;
+                showStats();
+            });
+        }
+    };
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            IKeyboardManager keyboardManager = IKeyboardManager.Stub.asInterface(service);
+            mKeyboardManager = keyboardManager;
+            mQueryExecutor.execute(() -> {
+                try {
+                    keyboardManager.registerCallback(mStatusCallback);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "register status callback failed", e);
+                }
+            });
+            refreshStats();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mKeyboardManager = null;
+            mStatus = null;
+            mTransferStats = null;
+            showStats();
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         Button button = findViewById(R.id.button);
         mTextView = findViewById(R.id.textView);
-        mTextView2 = findViewById(R.id.textView2);
+        RecyclerView deviceList = findViewById(R.id.deviceList);
+        mAdapter = new InputDeviceAdapter();
+        deviceList.setLayoutManager(new LinearLayoutManager(this));
+        deviceList.setAdapter(mAdapter);
         button.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -50,42 +137,119 @@ public class MainActivity extends AppCompatActivity {
             }
         });
         mInputManager = getSystemService(InputManager.class);
-        mInputManager.registerInputDeviceListener(new InputManager.InputDeviceListener() {
-            @Override
-            public void onInputDeviceAdded(int deviceId) {
-                updateInputDevices();
-            }
+        mInputManager.registerInputDeviceListener(mInputDeviceListener, mHandler);
+        // Connects once the service is running, without starting it
+        bindService(new Intent(this, XiaomiKeyboardService.class), mServiceConnection, 0);
+        showStats();
+        refreshInputDevices();
+    }
 
-            @Override
-            public void onInputDeviceRemoved(int deviceId) {
-                updateInputDevices();
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mStarted = true;
+        refreshStats();
+    }
 
-            }
+    @Override
+    protected void onStop() {
+        mStarted = false;
+        mHandler.removeCallbacks(mRefreshStatsRunnable);
+        super.onStop();
+    }
 
-            @Override
-            public void onInputDeviceChanged(int deviceId) {
-                updateInputDevices();
+    @Override
+    protected void onDestroy() {
+        mInputManager.unregisterInputDeviceListener(mInputDeviceListener);
+        IKeyboardManager keyboardManager = mKeyboardManager;
+        if (keyboardManager != null) {
+            mQueryExecutor.execute(() -> {
+                try {
+                    keyboardManager.unregisterCallback(mStatusCallback);
+                } catch (RemoteException e) {
+                    // The service is gone; nothing to unregister from
+                }
+            });
+        }
+        unbindService(mServiceConnection);
+        mHandler.removeCallbacksAndMessages(null);
+        mQueryExecutor.shutdown();
+        super.onDestroy();
+    }
+
+    private void scheduleDeviceRefresh() {
+        if (mDeviceRefreshPending) return;
+        mDeviceRefreshPending = true;
+        mHandler.postDelayed(mRefreshDevicesRunnable, DEVICE_REFRESH_THROTTLE_MS);
+    }
 
+    private void refreshInputDevices() {
+        mDeviceRefreshPending = false;
+        mQueryExecutor.execute(() -> {
+            List<InputDeviceAdapter.Row> rows = new ArrayList<>();
+            for (int id : mInputManager.getInputDeviceIds()) {
+                InputDevice inputDevice = mInputManager.getInputDevice(id);
+                if (inputDevice == null) continue;
+                rows.add(new InputDeviceAdapter.Row(inputDevice));
             }
-        }, new Handler(Looper.getMainLooper()));
-        updateInputDevices();
+            // Diffed against the shown list in the background; only changed rows rebind
+            mHandler.post(() -> mAdapter.submitList(rows));
+        });
     }
 
+    private void refreshStats() {
+        mHandler.removeCallbacks(mRefreshStatsRunnable);
+        IKeyboardManager keyboardManager = mKeyboardManager;
+        if (keyboardManager == null || !mStarted) return;
+        mQueryExecutor.execute(() -> {
+            TransferStats transferStats;
+            try {
+                transferStats = keyboardManager.getTransferStats();
+            } catch (RemoteException e) {
+                return;
+            }
+            mHandler.post(() -> {
+                mTransferStats = transferStats;
+                showStats();
+            });
+        });
+        mHandler.postDelayed(mRefreshStatsRunnable, STATS_REFRESH_INTERVAL_MS);
+    }
 
-    private void updateInputDevices() {
-        StringBuilder sb = new StringBuilder("input devices:\n");
-        for (int x : mInputManager.getInputDeviceIds()) {
-            InputDevice inputDevice = mInputManager.getInputDevice(x);
-            if (inputDevice == null) continue;;
-            sb.append(inputDevice.getId())
-                    .append(' ')
-                    .append(inputDevice.getName())
-                    .append(' ')
-                    .append(inputDevice.getVendorId()).append(':').append(inputDevice.getProductId())
-                    .append(" enabled=").append(inputDevice.isEnabled());
-            sb.append('\n');
+    private void showStats() {
+        if (mKeyboardManager == null) {
+            mTextView.setText("keyboard service not running");
+            return;
         }
-        mTextView2.setText(sb.toString());
+        StringBuilder sb = new StringBuilder();
+        KeyboardStatus status = mStatus;
+        if (status != null) {
+            sb.append("state=").append(stateToString(status.getState()))
+                    .append(" faults=").append(status.getFaults())
+                    .append(" charge=").append(status.getChargeState());
+            if (status.getLastTransitionTime() > 0) {
+                long agoMs = SystemClock.elapsedRealtime() - status.getLastTransitionTime();
+                sb.append("\nlast transition ").append(agoMs / 1000).append("s ago");
+            }
+        }
+        TransferStats transferStats = mTransferStats;
+        if (transferStats != null) {
+            sb.append("\ntransfers=").append(transferStats.getTransfers())
+                    .append(" failures=").append(transferStats.getFailures())
+                    .append(" retries=").append(transferStats.getRetries())
+                    .append(" host_resets=").append(transferStats.getHostResets());
+        }
+        mTextView.setText(sb.toString());
     }
 
-}
\ No newline at end of file
+    private static String stateToString(int state) {
+        switch (state) {
+            case XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED:
+                return "connected";
+            case XiaomiKeyboardManager.KEYBOARD_STATE_DISCONNECTED:
+                return "disconnected";
+            default:
+                return "unknown";
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package ink.kscope.xiaomikeyboardmanager;
+
+/**
+ * Decides whether and when a failed keyboard exchange is tried again.
+ */
+public interface RetryPolicy {
+
+    /**
+     * Returns the delay before the next attempt, or a negative value to give up.
+     *
+     * @param attempts the number of attempts made so far, starting at 1
+     */
+    long nextDelayMs(int attempts);
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager;
+
+/**
+ * USB vendor/product IDs of the keyboards we manage. Every USB function matching an
+ * entry gets its own {@link KeyboardDevice}.
+ */
+public final class SupportedKeyboards {
+
+    private static final Entry[] ENTRIES = {
+            new Entry(0x3206, 0x3ffc, "Xiaomi Pad keyboard"),
+    };
+
+    private SupportedKeyboards() {
+    }
+
+    /**
+     * Returns the matching entry, or null if the device isn't a supported keyboard.
+     */
+    public static Entry find(int vendorId, int productId) {
+        for (Entry entry : ENTRIES) {
+            if (entry.vendorId == vendorId && entry.productId == productId) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public static boolean isSupported(int vendorId, int productId) {
+        return find(vendorId, productId) != null;
+    }
+
+    public static final class Entry {
+        public final int vendorId;
+        public final int productId;
+        public final String name;
+
+        Entry(int vendorId, int productId, String name) {
+            this.vendorId = vendorId;
+            this.productId = productId;
+            this.name = name;
+        }
+    }
+}
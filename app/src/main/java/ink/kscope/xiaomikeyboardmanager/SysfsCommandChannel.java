@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import android.util.Log;
+
+import ink.kscope.xiaomikeyboardmanager.protocol.KeyboardCommand;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes commands to the driver's sysfs attribute from a single writer thread through
+ * one FileChannel that stays open. Callers get a future instead of blocking on sysfs I/O.
+ * A command identical to one still queued, or written less than the coalesce window ago,
+ * shares that write's future instead of being written again. Failed writes aren't shared.
+ */
+public class SysfsCommandChannel {
+
+    private static final String TAG = "SysfsCommandChannel";
+
+    public static final long DEFAULT_COALESCE_WINDOW_MS = 100;
+
+    private final File mFile;
+    private final ExecutorService mWriter;
+    private final WriteListener mWriteListener;
+
+    private FileChannel mChannel;
+
+    // Guarded by this
+    private Request mLastRequest;
+    private volatile long mCoalesceWindowNs = TimeUnit.MILLISECONDS.toNanos(
+            DEFAULT_COALESCE_WINDOW_MS);
+
+    private final AtomicLong mWriteCount = new AtomicLong();
+    private final AtomicLong mMergedCount = new AtomicLong();
+    private final AtomicLong mFailureCount = new AtomicLong();
+
+    public SysfsCommandChannel(File file, WriteListener writeListener) {
+        mFile = file;
+        mWriteListener = writeListener;
+        mWriter = Executors.newSingleThreadExecutor(r -> new Thread(r, "keyboard_sysfs_writer"));
+    }
+
+    public void setCoalesceWindowMs(long windowMs) {
+        mCoalesceWindowNs = TimeUnit.MILLISECONDS.toNanos(windowMs);
+    }
+
+    public CompletableFuture<Boolean> send(KeyboardCommand command) {
+        return send(command.getBytes());
+    }
+
+    /**
+     * Queues {@code command} for writing. The future completes with whether the write
+     * succeeded. {@code command} must not be modified afterwards.
+     */
+    public synchronized CompletableFuture<Boolean> send(byte[] command) {
+        Request last = mLastRequest;
+        if (last != null && Arrays.equals(last.mCommand, command)) {
+            CompletableFuture<Boolean> future = last.mFuture;
+            if (!future.isDone() || (future.getNow(false)
+                    && System.nanoTime() - last.mWriteTime < mCoalesceWindowNs)) {
+                mMergedCount.incrementAndGet();
+                return last.mFuture;
+            }
+        }
+        Request request = new Request(command);
+        mLastRequest = request;
+        mWriter.execute(() -> write(request));
+        return request.mFuture;
+    }
+
+    private void write(Request request) {
+        boolean success = false;
+        try {
+            if (mChannel == null) {
+                mChannel = FileChannel.open(mFile.toPath(), StandardOpenOption.WRITE);
+            }
+            mChannel.write(ByteBuffer.wrap(request.mCommand), 0);
+            success = true;
+            mWriteCount.incrementAndGet();
+            if (mWriteListener != null) {
+                mWriteListener.onWritten();
+            }
+        } catch (NoSuchFileException e) {
+            Log.e(TAG, mFile.getName() + " not exists");
+        } catch (IOException e) {
+            Log.e(TAG, "write " + mFile.getName() + " error", e);
+            closeChannel();
+        }
+        if (!success) {
+            mFailureCount.incrementAndGet();
+        }
+        // Commands sent while this was queued or being written merge into it
+        request.mWriteTime = System.nanoTime();
+        request.mFuture.complete(success);
+    }
+
+    private void closeChannel() {
+        if (mChannel == null) return;
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close " + mFile.getName() + " error", e);
+        }
+        mChannel = null;
+    }
+
+    /**
+     * Finishes the queued writes, then closes the file.
+     */
+    public void close() {
+        mWriter.execute(this::closeChannel);
+        mWriter.shutdown();
+    }
+
+    public long getWriteCount() {
+        return mWriteCount.get();
+    }
+
+    public long getMergedCount() {
+        return mMergedCount.get();
+    }
+
+    public long getFailureCount() {
+        return mFailureCount.get();
+    }
+
+    private static class Request {
+        final byte[] mCommand;
+        final CompletableFuture<Boolean> mFuture = new CompletableFuture<>();
+        // Set before the future completes
+        volatile long mWriteTime;
+
+        Request(byte[] command) {
+            mCommand = command;
+        }
+    }
+
+    public interface WriteListener {
+        /**
+         * Called on the writer thread after each successful write.
+         */
+        void onWritten();
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.InterruptedIOException;
+
+/**
+ * Reads the driver's conn_status attribute directly. The fd stays open; a thread waits in
+ * poll() for the driver's sysfs_notify and re-reads the value from offset 0, so a change
+ * costs one pread instead of a FileObserver hop plus a USB report scan.
+ */
+public class SysfsConnStatusMonitor {
+
+    private static final String TAG = "SysfsConnStatusMonitor";
+
+    public static final int STATUS_DISCONNECTED = 0;
+    public static final int STATUS_CONNECTED = 1;
+    // Anything we can't map to connected or disconnected; ask the keyboard instead
+    public static final int STATUS_AMBIGUOUS = -1;
+
+    // Only bounds how long stop() takes to be noticed; changes wake poll() right away
+    private static final int POLL_TIMEOUT_MS = 5000;
+
+    private final String mPath;
+    private final Callback mCallback;
+    private final byte[] mBuf = new byte[32];
+
+    // The thread that owns the current watch; an old thread exits once it's replaced
+    private volatile Thread mThread;
+
+    public SysfsConnStatusMonitor(String path, Callback callback) {
+        mPath = path;
+        mCallback = callback;
+    }
+
+    /**
+     * Maps the attribute's text to a {@code STATUS_} constant. The driver prints the
+     * connect state as a number; only 0 and 1 are taken at face value.
+     */
+    static int parseStatus(byte[] buf, int length) {
+        int start = 0;
+        while (start < length && isSpace(buf[start])) start++;
+        int end = start;
+        while (end < length && buf[end] >= '0' && buf[end] <= '9') end++;
+        int rest = end;
+        while (rest < length && (isSpace(buf[rest]) || buf[rest] == 0)) rest++;
+        if (end - start != 1 || rest != length) return STATUS_AMBIGUOUS;
+        switch (buf[start]) {
+            case '0':
+                return STATUS_DISCONNECTED;
+            case '1':
+                return STATUS_CONNECTED;
+            default:
+                return STATUS_AMBIGUOUS;
+        }
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * Opens the attribute and starts watching it. Reports the current value once.
+     * Returns false if the attribute can't be opened.
+     */
+    public synchronized boolean start() {
+        if (mThread != null) return true;
+        FileDescriptor fd;
+        try {
+            fd = Os.open(mPath, OsConstants.O_RDONLY | OsConstants.O_CLOEXEC, 0);
+        } catch (ErrnoException e) {
+            Log.i(TAG, "open " + mPath + " failed: " + e.getMessage());
+            return false;
+        }
+        Thread thread = new Thread(() -> pollLoop(fd), "keyboard_sysfs");
+        mThread = thread;
+        thread.start();
+        return true;
+    }
+
+    public synchronized void stop() {
+        Thread thread = mThread;
+        mThread = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return mThread != null;
+    }
+
+    private boolean isCurrent() {
+        return mThread == Thread.currentThread();
+    }
+
+    private void pollLoop(FileDescriptor fd) {
+        StructPollfd pollFd = new StructPollfd();
+        pollFd.fd = fd;
+        pollFd.events = (short) (OsConstants.POLLPRI | OsConstants.POLLERR);
+        StructPollfd[] pollFds = new StructPollfd[]{pollFd};
+        try {
+            // sysfs only arms poll() after a read, so read before the first wait
+            mCallback.onStatus(read(fd));
+            while (isCurrent()) {
+                pollFd.revents = 0;
+                if (Os.poll(pollFds, POLL_TIMEOUT_MS) > 0 && isCurrent()) {
+                    mCallback.onStatus(read(fd));
+                }
+            }
+        } catch (ErrnoException | InterruptedIOException e) {
+            synchronized (this) {
+                if (!isCurrent()) return;
+                mThread = null;
+            }
+            Log.e(TAG, "watch " + mPath + " failed", e);
+            mCallback.onError();
+        } finally {
+            try {
+                Os.close(fd);
+            } catch (ErrnoException e) {
+                Log.e(TAG, "close " + mPath + " failed", e);
+            }
+        }
+    }
+
+    private int read(FileDescriptor fd) throws ErrnoException, InterruptedIOException {
+        int length = Os.pread(fd, mBuf, 0, mBuf.length, 0);
+        return parseStatus(mBuf, Math.max(length, 0));
+    }
+
+    public interface Callback {
+        /**
+         * Called on the monitor thread with one of the {@code STATUS_} constants.
+         */
+        void onStatus(int status);
+
+        /**
+         * Watching failed and the monitor stopped.
+         */
+        void onError();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * USB transfer counters handed out over binder, taken from {@link KeyboardStats}.
+ */
+public final class TransferStats implements Parcelable {
+
+    private final long mTransfers;
+    private final long mFailures;
+    private final long mRetries;
+    private final long mHostResets;
+
+    public TransferStats(long transfers, long failures, long retries, long hostResets) {
+        mTransfers = transfers;
+        mFailures = failures;
+        mRetries = retries;
+        mHostResets = hostResets;
+    }
+
+    public long getTransfers() {
+        return mTransfers;
+    }
+
+    public long getFailures() {
+        return mFailures;
+    }
+
+    public long getRetries() {
+        return mRetries;
+    }
+
+    public long getHostResets() {
+        return mHostResets;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mTransfers);
+        dest.writeLong(mFailures);
+        dest.writeLong(mRetries);
+        dest.writeLong(mHostResets);
+    }
+
+    public static final Creator<TransferStats> CREATOR = new Creator<TransferStats>() {
+        @Override
+        public TransferStats createFromParcel(Parcel source) {
+            return new TransferStats(source.readLong(), source.readLong(), source.readLong(),
+                    source.readLong());
+        }
+
+        @Override
+        public TransferStats[] newArray(int size) {
+            return new TransferStats[size];
+        }
+    };
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides whether keyboard USB work may run now. While the screen is off or the device
+ * is idle the gate is parked: state queries and report scans are turned away and only
+ * remembered, so however many events arrive, waking up costs a single query.
+ */
+public class UsbActivityGate {
+
+    private final Listener mListener;
+
+    private boolean mInteractive = true;
+    private boolean mDeviceIdle;
+    private boolean mParked;
+    private boolean mCheckPending;
+    private long mParkedSince;
+
+    private long mParkCount;
+    private long mParkedTimeMs;
+    private long mDeferredCount;
+    private long mSkippedQueryCount;
+    private long mSkippedScanCount;
+    private long mResumeCheckCount;
+
+    public UsbActivityGate(Listener listener) {
+        mListener = listener;
+    }
+
+    public void setInteractive(boolean interactive) {
+        boolean changed;
+        synchronized (this) {
+            mInteractive = interactive;
+            changed = update();
+        }
+        notifyIfChanged(changed);
+    }
+
+    public void setDeviceIdle(boolean deviceIdle) {
+        boolean changed;
+        synchronized (this) {
+            mDeviceIdle = deviceIdle;
+            changed = update();
+        }
+        notifyIfChanged(changed);
+    }
+
+    // Returns whether mParked changed
+    private boolean update() {
+        boolean parked = !mInteractive || mDeviceIdle;
+        if (parked == mParked) return false;
+        mParked = parked;
+        long now = SystemClock.elapsedRealtime();
+        if (parked) {
+            mParkCount++;
+            mParkedSince = now;
+        } else {
+            mParkedTimeMs += now - mParkedSince;
+        }
+        return true;
+    }
+
+    private void notifyIfChanged(boolean changed) {
+        if (!changed) return;
+        boolean parked;
+        boolean checkPending;
+        synchronized (this) {
+            parked = mParked;
+            checkPending = !parked && mCheckPending;
+            if (checkPending) {
+                mCheckPending = false;
+                mResumeCheckCount++;
+            }
+        }
+        if (parked) {
+            mListener.onParked();
+        } else {
+            mListener.onResumed(checkPending);
+        }
+    }
+
+    public synchronized boolean isParked() {
+        return mParked;
+    }
+
+    /**
+     * Whether a connect state query may run now. If not, one runs on resume instead.
+     */
+    public synchronized boolean allowQuery() {
+        if (!mParked) return true;
+        mCheckPending = true;
+        mDeferredCount++;
+        mSkippedQueryCount++;
+        return false;
+    }
+
+    /**
+     * Whether a report scan may run now. If not, a connect state query runs on resume
+     * instead, since the reports will be gone by then.
+     */
+    public synchronized boolean allowScan() {
+        if (!mParked) return true;
+        mCheckPending = true;
+        mDeferredCount++;
+        mSkippedScanCount++;
+        return false;
+    }
+
+    /**
+     * Deferred events that didn't cost a wakeup of their own.
+     */
+    public synchronized long getAvoidedWakeupCount() {
+        return mDeferredCount - mResumeCheckCount;
+    }
+
+    /**
+     * USB queries and scans that didn't run; each is at least one transfer per device.
+     */
+    public synchronized long getAvoidedTransferCount() {
+        return mSkippedQueryCount + mSkippedScanCount - mResumeCheckCount;
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        long parkedTimeMs = mParkedTimeMs;
+        if (mParked) {
+            parkedTimeMs += SystemClock.elapsedRealtime() - mParkedSince;
+        }
+        pw.print(prefix);
+        pw.print("power gate: parked=");
+        pw.print(mParked);
+        pw.print(" interactive=");
+        pw.print(mInteractive);
+        pw.print(" device_idle=");
+        pw.print(mDeviceIdle);
+        pw.print(" parks=");
+        pw.print(mParkCount);
+        pw.print(" parked_time=");
+        pw.print(parkedTimeMs);
+        pw.println("ms");
+        pw.print(prefix);
+        pw.print("power gate: deferred=");
+        pw.print(mDeferredCount);
+        pw.print(" skipped_queries=");
+        pw.print(mSkippedQueryCount);
+        pw.print(" skipped_scans=");
+        pw.print(mSkippedScanCount);
+        pw.print(" resume_checks=");
+        pw.print(mResumeCheckCount);
+        pw.print(" avoided_wakeups=");
+        pw.print(mDeferredCount - mResumeCheckCount);
+        pw.print(" avoided_transfers=");
+        pw.println(mSkippedQueryCount + mSkippedScanCount - mResumeCheckCount);
+    }
+
+    public interface Listener {
+        /**
+         * Called on the thread that parked the gate. Background USB work should stop.
+         */
+        void onParked();
+
+        /**
+         * Called on the thread that resumed the gate. {@code checkPending} is true if work
+         * was turned away while parked and one connect state query should run now.
+         */
+        void onResumed(boolean checkPending);
+    }
+}
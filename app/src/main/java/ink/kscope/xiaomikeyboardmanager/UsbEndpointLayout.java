@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager;
+
+/**
+ * Where a keyboard's interfaces and endpoints were found last time, so the next session
+ * can go straight to them. {@link #NONE} marks a part that wasn't found.
+ */
+public class UsbEndpointLayout {
+
+    public static final int NONE = -1;
+
+    public final int transferInterfaceId;
+    public final int transferInAddress;
+    public final int transferOutAddress;
+    public final int reportInterfaceId;
+    public final int reportInAddress;
+
+    public UsbEndpointLayout(int transferInterfaceId, int transferInAddress,
+            int transferOutAddress, int reportInterfaceId, int reportInAddress) {
+        this.transferInterfaceId = transferInterfaceId;
+        this.transferInAddress = transferInAddress;
+        this.transferOutAddress = transferOutAddress;
+        this.reportInterfaceId = reportInterfaceId;
+        this.reportInAddress = reportInAddress;
+    }
+
+    public boolean hasTransfer() {
+        return transferInterfaceId != NONE;
+    }
+
+    public boolean hasReport() {
+        return reportInterfaceId != NONE;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof UsbEndpointLayout)) return false;
+        UsbEndpointLayout other = (UsbEndpointLayout) o;
+        return transferInterfaceId == other.transferInterfaceId
+                && transferInAddress == other.transferInAddress
+                && transferOutAddress == other.transferOutAddress
+                && reportInterfaceId == other.reportInterfaceId
+                && reportInAddress == other.reportInAddress;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = transferInterfaceId;
+        result = 31 * result + transferInAddress;
+        result = 31 * result + transferOutAddress;
+        result = 31 * result + reportInterfaceId;
+        result = 31 * result + reportInAddress;
+        return result;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import android.hardware.usb.UsbConfiguration;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbManager;
+
+import java.util.ArrayList;
+
+/**
+ * An opened keyboard device. The connection is opened, endpoints are looked up and
+ * interfaces are claimed at most once; {@link #close()} releases everything.
+ * A layout remembered from an earlier session is tried before searching the configuration.
+ */
+public class UsbKeyboardSession {
+
+    private static final int REPORT_INTERFACE_ID = 3;
+
+    private final UsbManager mUsbManager;
+    private final UsbDevice mUsbDevice;
+    private final UsbEndpointLayout mLayoutHint;
+
+    private UsbDeviceConnection mUsbConnection;
+    private UsbInterface mUsbInterface;
+    private UsbInterface mReportInterface;
+    private UsbEndpoint mInUsbEndpoint;
+    private UsbEndpoint mOutUsbEndpoint;
+    private UsbEndpoint mReportInUsbEndpoint;
+
+    private final ArrayList<UsbInterface> mClaimedInterfaces = new ArrayList<>();
+    private boolean mClosed;
+
+    public UsbKeyboardSession(UsbManager usbManager, UsbDevice device) {
+        this(usbManager, device, null);
+    }
+
+    public UsbKeyboardSession(UsbManager usbManager, UsbDevice device,
+            UsbEndpointLayout layoutHint) {
+        mUsbManager = usbManager;
+        mUsbDevice = device;
+        mLayoutHint = layoutHint;
+    }
+
+    public UsbDevice getDevice() {
+        return mUsbDevice;
+    }
+
+    public UsbDeviceConnection getConnection() {
+        return mUsbConnection;
+    }
+
+    public UsbEndpoint getInEndpoint() {
+        return mInUsbEndpoint;
+    }
+
+    public UsbEndpoint getOutEndpoint() {
+        return mOutUsbEndpoint;
+    }
+
+    public UsbEndpoint getReportInEndpoint() {
+        return mReportInUsbEndpoint;
+    }
+
+    /**
+     * The interfaces and endpoints found so far.
+     */
+    public synchronized UsbEndpointLayout getLayout() {
+        return new UsbEndpointLayout(
+                mUsbInterface != null ? mUsbInterface.getId() : UsbEndpointLayout.NONE,
+                mInUsbEndpoint != null ? mInUsbEndpoint.getAddress() : UsbEndpointLayout.NONE,
+                mOutUsbEndpoint != null ? mOutUsbEndpoint.getAddress() : UsbEndpointLayout.NONE,
+                mReportInterface != null ? mReportInterface.getId() : UsbEndpointLayout.NONE,
+                mReportInUsbEndpoint != null
+                        ? mReportInUsbEndpoint.getAddress() : UsbEndpointLayout.NONE);
+    }
+
+    private UsbInterface findInterface(int id) {
+        UsbConfiguration configuration = mUsbDevice.getConfiguration(0);
+        for (int i = 0; i < configuration.getInterfaceCount(); i++) {
+            UsbInterface usbInterface = configuration.getInterface(i);
+            if (usbInterface != null && usbInterface.getId() == id) {
+                return usbInterface;
+            }
+        }
+        return null;
+    }
+
+    private static UsbEndpoint findEndpoint(UsbInterface usbInterface, int address) {
+        for (int i = 0; i < usbInterface.getEndpointCount(); i++) {
+            UsbEndpoint endpoint = usbInterface.getEndpoint(i);
+            if (endpoint != null && endpoint.getAddress() == address) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    private boolean getHintedTransferEndpoint() {
+        if (mLayoutHint == null || !mLayoutHint.hasTransfer()) return false;
+        UsbInterface usbInterface = findInterface(mLayoutHint.transferInterfaceId);
+        if (usbInterface == null) return false;
+        UsbEndpoint in = findEndpoint(usbInterface, mLayoutHint.transferInAddress);
+        UsbEndpoint out = findEndpoint(usbInterface, mLayoutHint.transferOutAddress);
+        if (in == null || out == null) return false;
+        mInUsbEndpoint = in;
+        mOutUsbEndpoint = out;
+        mUsbInterface = usbInterface;
+        return true;
+    }
+
+    private boolean getHintedReportEndpoint() {
+        if (mLayoutHint == null || !mLayoutHint.hasReport()) return false;
+        UsbInterface usbInterface = findInterface(mLayoutHint.reportInterfaceId);
+        if (usbInterface == null) return false;
+        UsbEndpoint endpoint = findEndpoint(usbInterface, mLayoutHint.reportInAddress);
+        if (endpoint == null) return false;
+        mReportInUsbEndpoint = endpoint;
+        mReportInterface = usbInterface;
+        return true;
+    }
+
+    private boolean getTransferEndpoint() {
+        if (getHintedTransferEndpoint()) return true;
+        UsbConfiguration configuration = mUsbDevice.getConfiguration(0);
+        for (int i = 0; i < configuration.getInterfaceCount(); i++) {
+            UsbInterface usbInterface = configuration.getInterface(i);
+            if (usbInterface != null && usbInterface.getEndpointCount() >= 2) {
+                UsbEndpoint in = null;
+                UsbEndpoint out = null;
+                for (int j = 0; j < usbInterface.getEndpointCount(); j++) {
+                    UsbEndpoint endpoint = usbInterface.getEndpoint(j);
+                    if (endpoint != null) {
+                        int direction = endpoint.getDirection();
+                        if (direction == 128) {
+                            in = endpoint;
+                        } else if (direction == 0) {
+                            out = endpoint;
+                        }
+                    }
+                }
+                if (in != null && out != null) {
+                    mInUsbEndpoint = in;
+                    mOutUsbEndpoint = out;
+                    mUsbInterface = usbInterface;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean getReportEndpoint() {
+        if (getHintedReportEndpoint()) return true;
+        UsbConfiguration configuration = mUsbDevice.getConfiguration(0);
+        for (int i = 0; i < configuration.getInterfaceCount(); i++) {
+            UsbInterface anInterface = configuration.getInterface(i);
+            if (anInterface.getId() == REPORT_INTERFACE_ID && anInterface.getEndpointCount() == 1) {
+                UsbEndpoint endpoint = anInterface.getEndpoint(0);
+                if (endpoint != null) {
+                    mReportInUsbEndpoint = endpoint;
+                    mReportInterface = anInterface;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean openConnection() {
+        if (mUsbConnection == null) {
+            mUsbConnection = mUsbManager.openDevice(mUsbDevice);
+        }
+        return mUsbConnection != null;
+    }
+
+    private boolean claim(UsbInterface usbInterface) {
+        if (mClaimedInterfaces.contains(usbInterface)) {
+            return true;
+        }
+        if (!mUsbConnection.claimInterface(usbInterface, true)) {
+            KeyboardTrace.error(KeyboardTrace.EVENT_CLAIM_FAILED, usbInterface.getId());
+            return false;
+        }
+        mClaimedInterfaces.add(usbInterface);
+        return true;
+    }
+
+    public synchronized boolean openForTransfer() {
+        if (mClosed) return false;
+        if (mUsbInterface == null && !getTransferEndpoint()) {
+            KeyboardTrace.info(KeyboardTrace.EVENT_TRANSFER_ENDPOINT_MISSING, 0);
+            return false;
+        }
+        if (!openConnection()) {
+            KeyboardTrace.info(KeyboardTrace.EVENT_TRANSFER_OPEN_FAILED, 0);
+            return false;
+        }
+        return claim(mUsbInterface);
+    }
+
+    public synchronized boolean openForReport() {
+        if (mClosed) return false;
+        if (mReportInterface == null && !getReportEndpoint()) {
+            KeyboardTrace.error(KeyboardTrace.EVENT_REPORT_ENDPOINT_MISSING, 0);
+            return false;
+        }
+        if (!openConnection()) {
+            KeyboardTrace.error(KeyboardTrace.EVENT_REPORT_OPEN_FAILED, 0);
+            return false;
+        }
+        return claim(mReportInterface);
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    public synchronized void close() {
+        if (mClosed) return;
+        mClosed = true;
+        if (mUsbConnection != null) {
+            for (UsbInterface usbInterface : mClaimedInterfaces) {
+                mUsbConnection.releaseInterface(usbInterface);
+            }
+            mUsbConnection.close();
+            mUsbConnection = null;
+        }
+        mClaimedInterfaces.clear();
+    }
+}
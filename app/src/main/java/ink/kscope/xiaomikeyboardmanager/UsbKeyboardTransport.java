@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbManager;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport for one keyboard USB function. The session is opened on first use.
+ * {@link #close()} is final: the session is released once the transfers still in flight
+ * return, and nothing opens it again. Reads run as short bulk transfer slices, so
+ * {@link #abort()} and {@link #close()} stop them without waiting out the full timeout.
+ * Writes go out once with the full timeout, since a timed out write may still have
+ * reached the keyboard.
+ */
+public class UsbKeyboardTransport implements KeyboardTransport {
+
+    private static final int TRANSFER_SLICE_MS = 50;
+
+    private final UsbManager mUsbManager;
+    private final UsbDevice mDevice;
+    private volatile UsbEndpointLayout mLayout;
+
+    private volatile UsbKeyboardSession mSession;
+    private UsbReportReader mReportReader;
+
+    private final Object mUsbDeviceLock = new Object();
+
+    // Guarded by mUsbDeviceLock
+    private int mTransfersInFlight;
+    private volatile boolean mClosed;
+    // Bumped by abort(); a transfer gives up once it changes
+    private final AtomicInteger mAbortGeneration = new AtomicInteger();
+
+    public UsbKeyboardTransport(UsbManager usbManager, UsbDevice device) {
+        this(usbManager, device, null);
+    }
+
+    /**
+     * {@code layout} is where the endpoints were last time, or null if unknown.
+     */
+    public UsbKeyboardTransport(UsbManager usbManager, UsbDevice device,
+            UsbEndpointLayout layout) {
+        mUsbManager = usbManager;
+        mDevice = device;
+        mLayout = layout;
+    }
+
+    public UsbDevice getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * The endpoint layout of the open session, or the one it will start from.
+     */
+    public UsbEndpointLayout getLayout() {
+        UsbKeyboardSession session = mSession;
+        return session != null ? session.getLayout() : mLayout;
+    }
+
+    private UsbKeyboardSession getSession() {
+        synchronized (mUsbDeviceLock) {
+            if (mClosed) return null;
+            if (mSession == null) {
+                mSession = new UsbKeyboardSession(mUsbManager, mDevice, mLayout);
+            }
+            return mSession;
+        }
+    }
+
+    @Override
+    public boolean openForTransfer() {
+        UsbKeyboardSession session = getSession();
+        return session != null && session.openForTransfer();
+    }
+
+    @Override
+    public boolean openForReport() {
+        UsbKeyboardSession session = getSession();
+        return session != null && session.openForReport();
+    }
+
+    /**
+     * Keeps the session from being released until {@link #endTransfer()}.
+     */
+    private UsbKeyboardSession beginTransfer() {
+        synchronized (mUsbDeviceLock) {
+            if (mClosed || mSession == null) return null;
+            mTransfersInFlight++;
+            return mSession;
+        }
+    }
+
+    private void endTransfer() {
+        synchronized (mUsbDeviceLock) {
+            mTransfersInFlight--;
+            if (mClosed && mTransfersInFlight == 0) {
+                releaseSession();
+            }
+        }
+    }
+
+    @Override
+    public int write(byte[] data, int length, int timeoutMs) {
+        UsbKeyboardSession session = beginTransfer();
+        if (session == null) return -1;
+        try {
+            UsbDeviceConnection connection = session.getConnection();
+            UsbEndpoint endpoint = session.getOutEndpoint();
+            if (connection == null || endpoint == null || data == null) {
+                return -1;
+            }
+            return connection.bulkTransfer(endpoint, data, length, timeoutMs);
+        } finally {
+            endTransfer();
+        }
+    }
+
+    @Override
+    public int read(byte[] data, int length, int timeoutMs) {
+        UsbKeyboardSession session = beginTransfer();
+        if (session == null) return -1;
+        try {
+            return slicedRead(session.getConnection(), session.getInEndpoint(), data, length,
+                    timeoutMs);
+        } finally {
+            endTransfer();
+        }
+    }
+
+    @Override
+    public int readReport(byte[] data, int length, int timeoutMs) {
+        UsbKeyboardSession session = beginTransfer();
+        if (session == null) return -1;
+        try {
+            return slicedRead(session.getConnection(), session.getReportInEndpoint(), data,
+                    length, timeoutMs);
+        } finally {
+            endTransfer();
+        }
+    }
+
+    private int slicedRead(UsbDeviceConnection connection, UsbEndpoint endpoint,
+            byte[] data, int length, int timeoutMs) {
+        if (connection == null || endpoint == null || data == null) {
+            return -1;
+        }
+        int generation = mAbortGeneration.get();
+        long deadline = SystemClock.uptimeMillis() + timeoutMs;
+        while (true) {
+            long start = SystemClock.uptimeMillis();
+            int sliceMs = (int) Math.min(TRANSFER_SLICE_MS, deadline - start);
+            if (sliceMs <= 0) return -1;
+            int result = connection.bulkTransfer(endpoint, data, length, sliceMs);
+            if (result >= 0) return result;
+            // Failing well before the slice ran out is an error rather than a timeout
+            if (SystemClock.uptimeMillis() - start < sliceMs / 2) return -1;
+            if (mClosed || mAbortGeneration.get() != generation) return -1;
+        }
+    }
+
+    @Override
+    public void abort() {
+        mAbortGeneration.incrementAndGet();
+    }
+
+    @Override
+    public boolean startReportStream(ReportCallback callback) {
+        synchronized (mUsbDeviceLock) {
+            if (mReportReader != null) {
+                if (mReportReader.isRunning()) return true;
+                mReportReader.stop();
+            }
+            UsbKeyboardSession session = mSession;
+            if (mClosed || session == null || session.getConnection() == null
+                    || session.getReportInEndpoint() == null) {
+                return false;
+            }
+            mReportReader = new UsbReportReader(session.getConnection(),
+                    session.getReportInEndpoint(), callback);
+            if (mReportReader.start()) {
+                return true;
+            }
+            mReportReader = null;
+            return false;
+        }
+    }
+
+    @Override
+    public void stopReportStream() {
+        synchronized (mUsbDeviceLock) {
+            if (mReportReader != null) {
+                mReportReader.stop();
+                mReportReader = null;
+            }
+        }
+    }
+
+    /**
+     * Safe to call from any thread, even while another is blocked in a transfer: the
+     * connection is only closed after that transfer returns.
+     */
+    @Override
+    public void close() {
+        synchronized (mUsbDeviceLock) {
+            if (mClosed) return;
+            mClosed = true;
+            // Cancels the reader's queued requests before the connection goes away
+            stopReportStream();
+            if (mTransfersInFlight == 0) {
+                releaseSession();
+            }
+        }
+    }
+
+    private void releaseSession() {
+        if (mSession != null) {
+            mLayout = mSession.getLayout();
+            mSession.close();
+            mSession = null;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reads the report endpoint with a small pool of queued {@link UsbRequest}s.
+ * Completed requests are reaped with {@link UsbDeviceConnection#requestWait(long)} on a
+ * dedicated thread, handed to the callback and queued again, so no thread spins while
+ * the keyboard is idle.
+ */
+public class UsbReportReader {
+
+    private static final String TAG = "UsbReportReader";
+
+    private static final int REQUEST_COUNT = 4;
+    private static final int MIN_BUFFER_SIZE = 64;
+    private static final long WAIT_TIMEOUT_MS = 1000;
+
+    private final UsbDeviceConnection mConnection;
+    private final UsbEndpoint mEndpoint;
+    private final KeyboardTransport.ReportCallback mCallback;
+    private final UsbRequest[] mRequests = new UsbRequest[REQUEST_COUNT];
+
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    public UsbReportReader(UsbDeviceConnection connection, UsbEndpoint endpoint,
+            KeyboardTransport.ReportCallback callback) {
+        mConnection = connection;
+        mEndpoint = endpoint;
+        mCallback = callback;
+    }
+
+    public synchronized boolean start() {
+        if (mRunning) return true;
+        int bufferSize = Math.max(MIN_BUFFER_SIZE, mEndpoint.getMaxPacketSize());
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            UsbRequest request = new UsbRequest();
+            if (!request.initialize(mConnection, mEndpoint)) {
+                Log.e(TAG, "initialize usb request failed");
+                request.close();
+                releaseRequests();
+                return false;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+            request.setClientData(buffer);
+            mRequests[i] = request;
+            if (!request.queue(buffer)) {
+                Log.e(TAG, "queue usb request failed");
+                releaseRequests();
+                return false;
+            }
+        }
+        mRunning = true;
+        mThread = new Thread(this::readLoop, "keyboard_report_reader");
+        mThread.start();
+        return true;
+    }
+
+    public synchronized void stop() {
+        mRunning = false;
+        for (UsbRequest request : mRequests) {
+            if (request != null) request.cancel();
+        }
+        if (mThread != null && mThread != Thread.currentThread()) {
+            try {
+                mThread.join(WAIT_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mThread = null;
+        releaseRequests();
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    private void readLoop() {
+        while (mRunning) {
+            UsbRequest request;
+            try {
+                request = mConnection.requestWait(WAIT_TIMEOUT_MS);
+            } catch (TimeoutException e) {
+                continue;
+            }
+            if (request == null) {
+                Log.e(TAG, "request wait failed");
+                break;
+            }
+            if (!mRunning) break;
+            ByteBuffer buffer = (ByteBuffer) request.getClientData();
+            int length = buffer.position();
+            if (length > 0) {
+                mCallback.onReportReceived(buffer.array(), length);
+            }
+            Arrays.fill(buffer.array(), (byte) 0);
+            buffer.clear();
+            if (!request.queue(buffer)) {
+                Log.e(TAG, "requeue usb request failed");
+                break;
+            }
+        }
+        mRunning = false;
+    }
+
+    private void releaseRequests() {
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            if (mRequests[i] != null) {
+                mRequests[i].close();
+                mRequests[i] = null;
+            }
+        }
+    }
+}
@@ -16,26 +16,36 @@
 
 package ink.kscope.xiaomikeyboardmanager;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.hardware.usb.UsbConfiguration;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbDeviceConnection;
-import android.hardware.usb.UsbEndpoint;
-import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
 import android.os.FileObserver;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.PowerManager;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.util.ArrayList;
+import ink.kscope.xiaomikeyboardmanager.protocol.FrameCaptureRing;
+import ink.kscope.xiaomikeyboardmanager.protocol.FrameDecoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 public class XiaomiKeyboardManager {
 
@@ -43,274 +53,750 @@ public class XiaomiKeyboardManager {
 
     public static final int KEYBOARD_STATE_CONNECTED = 1;
     public static final int KEYBOARD_STATE_DISCONNECTED = 0;
-
-    private UsbDeviceConnection mUsbConnection;
-    private UsbDevice mUsbDevice;
-    private UsbInterface mUsbInterface;
-    private UsbInterface mReportInterface;
-    private UsbEndpoint mInUsbEndpoint;
-    private UsbEndpoint mOutUsbEndpoint;
-    private UsbEndpoint mReportInUsbEndpoint;
+    // The keyboard was reachable but didn't answer the state query in time
+    public static final int KEYBOARD_STATE_UNKNOWN = -1;
 
     private KeyboardHandler mHandler;
     private HandlerThread mHandlerThread;
+    // Bumped when the handler thread is stopped; a retired thread's late results are dropped
+    private volatile int mHandlerGeneration;
 
-    private int mKeyboardState = 0;
-
-    private final Object mUsbDeviceLock = new Object();
-    private final byte[] mSendBuf = new byte[64];
-    private final byte[] mRecBuf = new byte[64];
+    private final Context mContext;
     private final UsbManager mUsbManager;
-    private final ArrayList<KeyboardStateListener> mKeyboardStateListeners = new ArrayList<>();
+    private final KeyboardStats mStats = new KeyboardStats();
+    // Keyed by USB device name. Changed on the handler thread, or by the watchdog reopening one
+    private final LinkedHashMap<String, KeyboardDevice> mDevices = new LinkedHashMap<>();
+    private final KeyboardStateDebouncer mStateDebouncer = new KeyboardStateDebouncer(
+            KEYBOARD_STATE_DISCONNECTED, new KeyboardStateDebouncer.Scheduler() {
+        @Override
+        public void postDelayed(Runnable runnable, long delayMs) {
+            mHandler.postDelayed(runnable, delayMs);
+        }
 
-    private final FileObserver mFileObserver = new FileObserver(XiaomiKeyboardUtil.KEYBOARD_FILE) {
         @Override
-        public void onEvent(int event, @Nullable String path) {
-            mHandler.sendEmptyMessage(KeyboardHandler.MSG_GET_REPORT_DATA);
+        public void removeCallbacks(Runnable runnable) {
+            if (mHandler != null) {
+                mHandler.removeCallbacks(runnable);
+            }
         }
-    };
+    });
 
-    public XiaomiKeyboardManager(Context context) {
-        mUsbManager = context.getSystemService(UsbManager.class);
-    }
+    private final FileEventCoalescer mFileEventCoalescer =
+            new FileEventCoalescer(this::scheduleReportScan);
+    private FileObserver mFileObserver;
+    private final SysfsConnStatusMonitor mSysfsMonitor = new SysfsConnStatusMonitor(
+            XiaomiKeyboardUtil.KEYBOARD_FILE_PATH, new SysfsConnStatusMonitor.Callback() {
+        @Override
+        public void onStatus(int status) {
+            mStats.onFileEvent();
+            mHandler.obtainMessage(KeyboardHandler.MSG_SYSFS_STATUS, status, 0).sendToTarget();
+        }
 
-    public void start() {
-        if (mHandlerThread != null && mHandlerThread.isAlive()) return;
-        mHandlerThread = new HandlerThread("keyboard_handler");
-        mHandlerThread.start();
-        mHandler = new KeyboardHandler(mHandlerThread.getLooper());
-        mHandler.sendEmptyMessage(KeyboardHandler.MSG_READ_CONNECT_STATE);
-        mFileObserver.startWatching();
-    }
+        @Override
+        public void onError() {
+            mHandler.post(XiaomiKeyboardManager.this::startFileObserver);
+        }
+    });
+    private volatile boolean mSysfsFastPathEnabled;
+    private boolean mReceiverRegistered;
+    private volatile FrameCaptureRing mCapture;
+    private volatile File mSnapshotFile;
+    private final KeyboardSnapshotWriter mSnapshotWriter = new KeyboardSnapshotWriter(
+            Executors.newSingleThreadExecutor(r -> new Thread(r, "keyboard_snapshot")));
+
+    private HostResetScheduler mHostResetScheduler;
+    private AdaptivePollScheduler mPollScheduler;
+    // No sysfs node, so the connect state is polled while the gate is open
+    private boolean mPollingFallback;
+
+    private final UsbActivityGate mPowerGate = new UsbActivityGate(new UsbActivityGate.Listener() {
+        @Override
+        public void onParked() {
+            Log.i(TAG, "parking keyboard USB activity");
+            mPollScheduler.stop();
+            mHostResetScheduler.cancel();
+            // Its ticks and heartbeats would keep waking the device
+            mWatchdog.stop();
+        }
 
-    public void stop() {
-        if (mHandlerThread != null && mHandlerThread.isAlive()) {
-            mHandlerThread.quitSafely();
+        @Override
+        public void onResumed(boolean checkPending) {
+            Log.i(TAG, "resuming keyboard USB activity, check pending: " + checkPending);
+            if (mStarted) {
+                mWatchdog.start();
+            }
+            if (mPollingFallback) {
+                mPollScheduler.start();
+            }
+            if (checkPending) {
+                mHandler.sendEmptyMessage(KeyboardHandler.MSG_READ_CONNECT_STATE);
+            }
         }
-        mFileObserver.stopWatching();
-    }
-
-    private boolean getTransferEndpoint(UsbDevice device) {
-        if (device == null) {
-            return false;
-        }
-        UsbConfiguration configuration = device.getConfiguration(0);
-        for (int i = 0; i < configuration.getInterfaceCount(); i++) {
-            UsbInterface usbInterface = configuration.getInterface(i);
-            if (usbInterface != null && usbInterface.getEndpointCount() >= 2) {
-                for (int j = 0; j < usbInterface.getEndpointCount(); j++) {
-                    UsbEndpoint endpoint = usbInterface.getEndpoint(j);
-                    if (endpoint != null) {
-                        int direction = endpoint.getDirection();
-                        if (direction == 128) {
-                            mInUsbEndpoint = endpoint;
-                        } else if (direction == 0) {
-                            mOutUsbEndpoint = endpoint;
-                        }
-                    }
-                }
-                if (mInUsbEndpoint != null && mOutUsbEndpoint != null) {
-                    mUsbInterface = usbInterface;
-                    return true;
-                }
+    });
+    private boolean mPowerReceiverRegistered;
+    // Between start() and stop(); the watchdog only runs then, and only while not parked
+    private volatile boolean mStarted;
+
+    private final HandlerWatchdog mWatchdog = new HandlerWatchdog(new HandlerWatchdog.Recovery() {
+        @Override
+        public long getOldestTransferMs() {
+            long oldest = 0;
+            for (KeyboardDevice device : getDeviceArray()) {
+                oldest = Math.max(oldest, device.getController().getTransferAgeMs());
             }
+            return oldest;
         }
-        return false;
-    }
-
-    private boolean getDeviceReadyForTransfer() {
-        synchronized (mUsbDeviceLock) {
-            if (mUsbDevice != null && mUsbConnection != null && mUsbInterface != null &&
-                    mOutUsbEndpoint != null && mInUsbEndpoint != null) {
-                mUsbConnection.claimInterface(mUsbInterface, true);
-                return true;
-            } else if (mUsbDevice == null && !getUsbDevice()) {
-                return false;
-            } else {
-                if (!getTransferEndpoint(mUsbDevice)) {
-                    Log.i(TAG, "get transfer endpoint failed");
-                    return false;
-                }
-                if (mUsbConnection == null) {
-                    mUsbConnection = mUsbManager.openDevice(mUsbDevice);
-                }
-                if (mUsbConnection != null && mOutUsbEndpoint != null && mInUsbEndpoint != null) {
-                    mUsbConnection.claimInterface(mUsbInterface, true);
-                    return true;
-                }
-                Log.i(TAG, "get usb transfer connection failed");
-                return false;
+
+        @Override
+        public void abortTransfers() {
+            for (KeyboardDevice device : getDeviceArray()) {
+                device.getController().abort();
             }
         }
-    }
 
-    private boolean getUsbDevice() {
-        synchronized (mUsbDeviceLock) {
-            HashMap<String, UsbDevice> deviceList = mUsbManager.getDeviceList();
-            for (UsbDevice device : deviceList.values()) {
-                if (mUsbManager.hasPermission(device) &&
-                        XiaomiKeyboardUtil.deviceIsXiaomiKeyboard(
-                                device.getVendorId(), device.getProductId())) {
-                    Log.i(TAG, "getUsbDevice: " + device.getDeviceName());
-                    mUsbDevice = device;
-                    break;
+        @Override
+        public void reopenSessions() {
+            for (KeyboardDevice device : getDeviceArray()) {
+                reopenDevice(device);
+            }
+        }
+
+        @Override
+        public void resetHost() {
+            mStats.onHostReset();
+            XiaomiKeyboardUtil.resetKeyboardHost();
+        }
+
+        @Override
+        public void restartThread() {
+            restartHandlerThread();
+        }
+    });
+
+    // Set on the handler thread while sysfs states are copied into the controllers
+    private boolean mSyncingDeviceStates;
+    // Called synchronously on the handler thread by each device's controller
+    private final KeyboardStateListener mDeviceStateListener = state -> {
+        if (!mSyncingDeviceStates) {
+            onDeviceStateChanged();
+        }
+    };
+
+    private final BroadcastReceiver mUsbDeviceReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+            if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(intent.getAction())) {
+                if (addUsbDevice(device)) {
+                    // An attach is worth a query even while the gate is parked
+                    mHandler.obtainMessage(KeyboardHandler.MSG_READ_CONNECT_STATE,
+                            KeyboardHandler.ARG_FORCE, 0).sendToTarget();
+                    mPollScheduler.onActivity();
                 }
+            } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(intent.getAction())) {
+                removeUsbDevice(device);
             }
         }
-        if (mUsbDevice == null) {
-            Log.i(TAG, "get usb device failed");
-            if (!mHandler.hasMessages(12)) {
-                mHandler.sendEmptyMessageDelayed(KeyboardHandler.MSG_GET_DEVICE_TIME_OUT, 20000);
+    };
+
+    private final BroadcastReceiver mPowerReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (Intent.ACTION_SCREEN_ON.equals(action)) {
+                mPowerGate.setInteractive(true);
+            } else if (Intent.ACTION_SCREEN_OFF.equals(action)) {
+                mPowerGate.setInteractive(false);
+            } else if (PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED.equals(action)) {
+                PowerManager powerManager = context.getSystemService(PowerManager.class);
+                mPowerGate.setDeviceIdle(powerManager.isDeviceIdleMode());
             }
-        } else {
-            mHandler.removeMessages(12);
         }
-        return mUsbDevice != null;
+    };
+
+    public XiaomiKeyboardManager(Context context) {
+        mContext = context;
+        mUsbManager = context.getSystemService(UsbManager.class);
+        // Committed states arrive on the handler thread
+        mStateDebouncer.addListener(state -> postSnapshot(), null);
     }
 
-    private boolean sendUsbData(UsbDeviceConnection connection, UsbEndpoint endpoint, byte[] data) {
-        return connection != null && endpoint != null && data != null
-                && connection.bulkTransfer(endpoint, data, data.length, 500) != -1;
+    /**
+     * Manages a single keyboard reached through {@code transport} instead of USB devices.
+     */
+    public XiaomiKeyboardManager(KeyboardTransport transport) {
+        mContext = null;
+        mUsbManager = null;
+        addDevice(new KeyboardDevice("default", transport, r -> mHandler.post(r), mStats));
     }
 
-    private void doCheckConnectionState() {
-        if (!getDeviceReadyForTransfer()) {
+    private void addDevice(KeyboardDevice device) {
+        KeyboardController controller = device.getController();
+        controller.addKeyboardStateListener(mDeviceStateListener);
+        controller.setFaultListener(status -> {
+            if (!isRetiredHandlerThread()) {
+                mStateDebouncer.onFault(status);
+            }
+        });
+        controller.setCapture(mCapture);
+        synchronized (mDevices) {
+            mDevices.put(device.getName(), device);
+        }
+    }
+
+    private boolean isSupportedUsbDevice(UsbDevice device) {
+        return device != null && mUsbManager.hasPermission(device)
+                && SupportedKeyboards.isSupported(device.getVendorId(), device.getProductId());
+    }
+
+    /**
+     * Starts tracking {@code device} if it is a supported keyboard. Returns whether it is
+     * tracked now.
+     */
+    private boolean addUsbDevice(UsbDevice device) {
+        return addUsbDevice(device, null, KEYBOARD_STATE_DISCONNECTED);
+    }
+
+    /**
+     * {@code layout} and {@code state} are what a snapshot remembered about the device.
+     */
+    private boolean addUsbDevice(UsbDevice device, UsbEndpointLayout layout, int state) {
+        if (isRetiredHandlerThread() || !isSupportedUsbDevice(device)) return false;
+        synchronized (mDevices) {
+            if (mDevices.containsKey(device.getDeviceName())) return true;
+        }
+        Log.i(TAG, "keyboard device added: " + device.getDeviceName());
+        KeyboardDevice keyboardDevice = new KeyboardDevice(device.getDeviceName(),
+                new UsbKeyboardTransport(mUsbManager, device, layout), r -> mHandler.post(r),
+                mStats);
+        keyboardDevice.getController().restoreState(state);
+        addDevice(keyboardDevice);
+        mHostResetScheduler.onDeviceFound();
+        return true;
+    }
+
+    /**
+     * Swaps {@code device} for one on a fresh transport. The old transport closes once the
+     * transfer blocking the handler thread returns, so that thread never touches a freed
+     * connection, and being closed for good it can't reopen the device behind our back.
+     */
+    private void reopenDevice(KeyboardDevice device) {
+        if (!(device.getTransport() instanceof UsbKeyboardTransport)) {
+            // Nothing to reopen it with; cutting the transfer short is all we can do
+            device.getTransport().abort();
             return;
         }
-        Arrays.fill(mSendBuf, (byte) 0);
-        byte[] command = XiaomiKeyboardUtil.commandGetConnectState();
-        System.arraycopy(command, 0, mSendBuf, 0, command.length);
-        for (int i = 0; i < 2; i++) {
-            if (sendUsbData(mUsbConnection, mOutUsbEndpoint, mSendBuf)) {
-                Arrays.fill(mRecBuf, (byte) 0);
-                while (sendUsbData(mUsbConnection, mInUsbEndpoint, mRecBuf)) {
-                    if (parseConnectState(mRecBuf)) {
-                        return;
-                    }
-                }
-            } else {
-                Log.i(TAG, "send connect failed");
-            }
+        UsbKeyboardTransport transport = (UsbKeyboardTransport) device.getTransport();
+        KeyboardDevice replacement = new KeyboardDevice(device.getName(),
+                new UsbKeyboardTransport(mUsbManager, transport.getDevice(),
+                        transport.getLayout()), r -> mHandler.post(r), mStats);
+        replacement.getController().restoreState(device.getKeyboardState());
+        synchronized (mDevices) {
+            // Detached meanwhile
+            if (mDevices.get(device.getName()) != device) return;
+            addDevice(replacement);
         }
+        Log.i(TAG, "keyboard device reopened: " + device.getName());
+        device.getController().removeKeyboardStateListener(mDeviceStateListener);
+        device.close();
     }
 
-    private boolean parseConnectState(byte[] recBuf) {
-        if (recBuf[4] != -94) {
-            Log.i(TAG, "receive connect state error:" + String.format("%02x", recBuf[4]));
-            return false;
-        }
-        if (recBuf[18] == 1) {
-            Log.i(TAG, "keyboard is over charged");
-        } else if ((recBuf[9] & 3) == 1) {
-            Log.i(TAG, "TRX check failed");
-        } else if ((recBuf[9] & 99) == 67) {
-            Log.i(TAG, "pin connect failed");
-        } else if ((recBuf[9] & 3) == 0) {
-            notifyKeyboardStateListeners(KEYBOARD_STATE_DISCONNECTED);
-            return true;
-        } else if ((recBuf[9] & 99) == 35) {
-            notifyKeyboardStateListeners(KEYBOARD_STATE_CONNECTED);
-            return true;
-        } else {
-            Log.i(TAG, "unhandled connect state:" + String.format("%02x", recBuf[9]));
+    private void removeUsbDevice(UsbDevice device) {
+        if (device == null || isRetiredHandlerThread()) return;
+        KeyboardDevice removed;
+        synchronized (mDevices) {
+            removed = mDevices.remove(device.getDeviceName());
         }
-        return false;
+        if (removed == null) return;
+        Log.i(TAG, "keyboard device removed: " + device.getDeviceName());
+        removed.close();
+        onDeviceStateChanged();
     }
 
-    private boolean getReportEndpoint(UsbDevice device) {
-        if (device == null) {
-            return false;
+    private void scanUsbDevices() {
+        for (UsbDevice device : mUsbManager.getDeviceList().values()) {
+            addUsbDevice(device);
         }
-        UsbConfiguration configuration = device.getConfiguration(0);
-        for (int i = 0; i < configuration.getInterfaceCount(); i++) {
-            UsbInterface anInterface = configuration.getInterface(i);
-            if (anInterface.getId() == 3 && anInterface.getEndpointCount() == 1) {
-                UsbEndpoint endpoint = anInterface.getEndpoint(0);
-                mReportInUsbEndpoint = endpoint;
-                if (endpoint != null) {
-                    mReportInterface = anInterface;
-                    return true;
-                }
+    }
+
+    /**
+     * Picks up the devices from the last snapshot that are still attached, with their
+     * endpoint layout and state, so they are usable before the first query completes.
+     */
+    private void restoreSnapshot() {
+        File file = mSnapshotFile;
+        if (file == null || mUsbManager == null) return;
+        KeyboardSnapshot snapshot = KeyboardSnapshot.read(file);
+        if (snapshot == null) return;
+        Map<String, UsbDevice> attached = mUsbManager.getDeviceList();
+        boolean restored = false;
+        for (KeyboardSnapshot.Device saved : snapshot.getDevices()) {
+            UsbDevice device = attached.get(saved.name);
+            if (device == null || device.getVendorId() != saved.vendorId
+                    || device.getProductId() != saved.productId) {
+                continue;
             }
+            restored |= addUsbDevice(device, saved.layout, snapshot.getState());
+        }
+        if (restored) {
+            Log.i(TAG, "restored keyboard state " + snapshot.getState() + " from snapshot");
+            mStateDebouncer.restoreState(snapshot.getState());
         }
-        return false;
     }
 
-    private boolean getDeviceReadyForReport() {
-        synchronized (mUsbDeviceLock) {
-            if (mUsbDevice != null && mUsbConnection != null && mReportInterface != null && mReportInUsbEndpoint != null) {
-                mUsbConnection.claimInterface(mReportInterface, true);
-                return true;
-            } else if (mUsbDevice == null && !getUsbDevice()) {
-                return false;
-            } else {
-                if (!getReportEndpoint(mUsbDevice)) {
-                    Log.e(TAG, "get usb report endpoint fail");
-                    return false;
-                }
-                if (mUsbConnection == null) {
-                    mUsbConnection = mUsbManager.openDevice(mUsbDevice);
-                }
-                if (mUsbConnection != null && mReportInterface != null && mReportInUsbEndpoint != null) {
-                    mUsbConnection.claimInterface(mReportInterface, true);
-                    return true;
-                }
-                Log.e(TAG, "get usb report connection fail");
-                return false;
+    private void postSnapshot() {
+        File file = mSnapshotFile;
+        if (file == null) return;
+        mSnapshotWriter.post(file, buildSnapshot());
+    }
+
+    private void flushSnapshot() {
+        File file = mSnapshotFile;
+        if (file == null) return;
+        mSnapshotWriter.flush(file, buildSnapshot());
+    }
+
+    private KeyboardSnapshot buildSnapshot() {
+        List<KeyboardSnapshot.Device> devices = new ArrayList<>();
+        for (KeyboardDevice device : getDeviceArray()) {
+            if (!(device.getTransport() instanceof UsbKeyboardTransport)) continue;
+            UsbKeyboardTransport transport = (UsbKeyboardTransport) device.getTransport();
+            UsbEndpointLayout layout = transport.getLayout();
+            if (layout == null) continue;
+            UsbDevice usbDevice = transport.getDevice();
+            devices.add(new KeyboardSnapshot.Device(device.getName(), usbDevice.getVendorId(),
+                    usbDevice.getProductId(), layout));
+        }
+        return new KeyboardSnapshot(getKeyboardState(), devices);
+    }
+
+    private KeyboardDevice[] getDeviceArray() {
+        synchronized (mDevices) {
+            return mDevices.values().toArray(new KeyboardDevice[0]);
+        }
+    }
+
+    /**
+     * A snapshot of the keyboards being tracked.
+     */
+    public List<KeyboardDevice> getDevices() {
+        return Arrays.asList(getDeviceArray());
+    }
+
+    public KeyboardDevice getDevice(String name) {
+        synchronized (mDevices) {
+            return mDevices.get(name);
+        }
+    }
+
+    /**
+     * Connected if any device is, else unknown if any device is, else disconnected.
+     */
+    private int getRawKeyboardState() {
+        int state = KEYBOARD_STATE_DISCONNECTED;
+        for (KeyboardDevice device : getDeviceArray()) {
+            int deviceState = device.getKeyboardState();
+            if (deviceState == KEYBOARD_STATE_CONNECTED) {
+                return KEYBOARD_STATE_CONNECTED;
+            } else if (deviceState == KEYBOARD_STATE_UNKNOWN) {
+                state = KEYBOARD_STATE_UNKNOWN;
             }
         }
+        return state;
     }
 
-    private void doGetReportData() {
-        if (!getDeviceReadyForReport()) {
-            return;
+    private void onDeviceStateChanged() {
+        if (isRetiredHandlerThread()) return;
+        mStateDebouncer.onKeyboardStateChanged(getRawKeyboardState());
+    }
+
+    /**
+     * Returns the devices to work on, arming a host reset if there are none.
+     */
+    private KeyboardDevice[] getDevicesOrReportMissing() {
+        KeyboardDevice[] devices = getDeviceArray();
+        if (devices.length == 0 && mHostResetScheduler != null && mUsbManager != null) {
+            Log.i(TAG, "get usb device failed");
+            mHostResetScheduler.onDeviceMissing();
         }
-        Arrays.fill(mRecBuf, (byte) 0);
-        long startTime = System.currentTimeMillis();
-        while (true) {
-            boolean hasReport = sendUsbData(mUsbConnection, mReportInUsbEndpoint, mRecBuf);
-            if (hasReport || System.currentTimeMillis() - startTime < 20) {
-                if (hasReport) {
-                    parseReportData(mRecBuf);
-                }
-            } else {
-                return;
+        return devices;
+    }
+
+    private void checkConnectionState() {
+        KeyboardDevice[] devices = getDevicesOrReportMissing();
+        for (KeyboardDevice device : devices) {
+            device.getController().checkConnectionState();
+        }
+    }
+
+    private int pollConnectionState() {
+        mStats.onDequeue(false);
+        checkConnectionState();
+        return getRawKeyboardState();
+    }
+
+    public void start() {
+        mStarted = true;
+        startHandlerThread();
+        if (!mPowerGate.isParked()) {
+            mWatchdog.start();
+        }
+    }
+
+    private synchronized void startHandlerThread() {
+        if (mHandlerThread != null && mHandlerThread.isAlive()) return;
+        mHandlerThread = new KeyboardHandlerThread(mHandlerGeneration);
+        mHandlerThread.start();
+        mHandler = new KeyboardHandler(mHandlerThread.getLooper());
+        // Reads the disk, so it runs first thing on the new thread instead of the caller's
+        mHandler.post(this::restoreSnapshot);
+        mHostResetScheduler = new HostResetScheduler(mHandler, mStats);
+        mPollScheduler = new AdaptivePollScheduler(mHandler, this::pollConnectionState);
+        if (mContext != null) {
+            PowerManager powerManager = mContext.getSystemService(PowerManager.class);
+            mPowerGate.setInteractive(powerManager.isInteractive());
+            mPowerGate.setDeviceIdle(powerManager.isDeviceIdleMode());
+            if (!mPowerReceiverRegistered) {
+                IntentFilter filter = new IntentFilter();
+                filter.addAction(Intent.ACTION_SCREEN_ON);
+                filter.addAction(Intent.ACTION_SCREEN_OFF);
+                filter.addAction(PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED);
+                mContext.registerReceiver(mPowerReceiver, filter, null, mHandler);
+                mPowerReceiverRegistered = true;
+            }
+        }
+        if (mUsbManager != null) {
+            mHandler.post(this::scanUsbDevices);
+        }
+        mPollingFallback = !XiaomiKeyboardUtil.KEYBOARD_FILE.exists();
+        if (mPollingFallback) {
+            // Nothing will tell us about changes, so go looking for them
+            Log.i(TAG, "no keyboard sysfs node, polling connect state");
+            if (!mPowerGate.isParked()) {
+                mPollScheduler.start();
+            }
+        } else {
+            mHandler.sendEmptyMessage(KeyboardHandler.MSG_READ_CONNECT_STATE);
+            if (!mSysfsFastPathEnabled || !mSysfsMonitor.start()) {
+                startFileObserver();
             }
         }
+        if (mUsbManager != null && !mReceiverRegistered) {
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+            filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+            mContext.registerReceiver(mUsbDeviceReceiver, filter, null, mHandler);
+            mReceiverRegistered = true;
+        }
+        mWatchdog.setTarget(mHandler::post);
+    }
+
+    private synchronized void startFileObserver() {
+        if (mFileObserver != null) return;
+        mFileEventCoalescer.reset();
+        mFileObserver = new FileObserver(XiaomiKeyboardUtil.KEYBOARD_FILE,
+                FileEventCoalescer.OBSERVED_EVENTS) {
+            @Override
+            public void onEvent(int event, @Nullable String path) {
+                mFileEventCoalescer.onEvent(event);
+            }
+        };
+        mFileObserver.startWatching();
     }
 
-    private void parseReportData(byte[] recBuf) {
-        if (recBuf[0] == 38 && recBuf[2] == 56 && recBuf[4] == -94) {
-            parseConnectState(recBuf);
+    public void stop() {
+        mStarted = false;
+        mWatchdog.stop();
+        stopHandlerThread();
+    }
+
+    /**
+     * Last resort for a wedged handler thread: tears everything down and starts over on
+     * a new thread. The old one is left to exit once its blocked call returns, and
+     * whatever it finds by then is dropped.
+     */
+    private void restartHandlerThread() {
+        Log.w(TAG, "restarting keyboard handler thread");
+        stopHandlerThread();
+        startHandlerThread();
+    }
+
+    private synchronized void stopHandlerThread() {
+        mHandlerGeneration++;
+        mSysfsMonitor.stop();
+        if (mFileObserver != null) {
+            mFileObserver.stopWatching();
+            mFileObserver = null;
+        }
+        if (mReceiverRegistered) {
+            mContext.unregisterReceiver(mUsbDeviceReceiver);
+            mReceiverRegistered = false;
+        }
+        if (mPowerReceiverRegistered) {
+            mContext.unregisterReceiver(mPowerReceiver);
+            mPowerReceiverRegistered = false;
+        }
+        if (mHostResetScheduler != null) {
+            mHostResetScheduler.cancel();
+        }
+        if (mPollScheduler != null) {
+            mPollScheduler.stop();
+        }
+        mStateDebouncer.cancel();
+        flushSnapshot();
+        KeyboardDevice[] devices = getDeviceArray();
+        for (KeyboardDevice device : devices) {
+            device.getController().stop();
+        }
+        if (mHandlerThread != null && mHandlerThread.isAlive()) {
+            mHandlerThread.quitSafely();
+        }
+        mHandlerThread = null;
+        for (KeyboardDevice device : devices) {
+            device.getTransport().close();
         }
+        if (mUsbManager != null) {
+            // Looked up again on the next start()
+            synchronized (mDevices) {
+                mDevices.clear();
+            }
+        }
+        stopCapture();
     }
 
-    private void notifyKeyboardStateListeners(int state) {
-        if (mKeyboardState == state) return;
-        synchronized (mKeyboardStateListeners) {
-            for (KeyboardStateListener listener : mKeyboardStateListeners) {
-                listener.onKeyboardStateChanged(state);
+    /**
+     * The driver's view covers the whole dock, so it goes straight to the debouncer. The
+     * controllers adopt it too; otherwise a later USB query that agrees with a stale
+     * cached state would look like no change and never reach the debouncer.
+     */
+    private void onSysfsState(int state) {
+        if (isRetiredHandlerThread()) return;
+        mStats.onStateDecision();
+        KeyboardTrace.beginSection(KeyboardTrace.SECTION_SYSFS);
+        try {
+            mSyncingDeviceStates = true;
+            try {
+                for (KeyboardDevice device : getDeviceArray()) {
+                    device.getController().syncState(state);
+                }
+            } finally {
+                mSyncingDeviceStates = false;
             }
+            mStateDebouncer.onKeyboardStateChanged(state);
+        } finally {
+            KeyboardTrace.endSection();
         }
-        mKeyboardState = state;
+    }
+
+    private void scheduleReportScan(long delayMs) {
+        mStats.onFileEvent();
+        mHandler.sendEmptyMessageDelayed(KeyboardHandler.MSG_GET_REPORT_DATA, delayMs);
+    }
+
+    /**
+     * Where to keep the last known devices, endpoint layouts and state across restarts.
+     * Should be in device protected storage so it can be read before the user unlocks.
+     * Takes effect on the next {@link #start()}.
+     */
+    public void setSnapshotFile(File file) {
+        mSnapshotFile = file;
+    }
+
+    public HostResetScheduler getHostResetScheduler() {
+        return mHostResetScheduler;
+    }
+
+    public HandlerWatchdog getWatchdog() {
+        return mWatchdog;
+    }
+
+    public UsbActivityGate getPowerGate() {
+        return mPowerGate;
+    }
+
+    public AdaptivePollScheduler getPollScheduler() {
+        return mPollScheduler;
+    }
+
+    /**
+     * The settled keyboard state, as seen by listeners.
+     */
+    public int getKeyboardState() {
+        return mStateDebouncer.getState();
+    }
+
+    /**
+     * The settled state together with faults and when it last changed.
+     */
+    public KeyboardStatus getKeyboardStatus() {
+        return new KeyboardStatus(mStateDebouncer.getState(), mStateDebouncer.getFaultFlags(),
+                mStateDebouncer.getLastTransitionTime());
+    }
+
+    /**
+     * The caller has acted on the settled state, e.g. enabled the input device. Ends the
+     * latency measurement for the change that led to it.
+     */
+    public void onKeyboardStateApplied() {
+        mStats.onListenerComplete();
+    }
+
+    public TransferStats getTransferStats() {
+        return new TransferStats(mStats.getTransferCount(), mStats.getTransferFailures(),
+                mStats.getRetries(), mStats.getHostResets());
+    }
+
+    /**
+     * {@code listener} is called on {@code executor} with every fault the keyboard reports.
+     */
+    public void setFaultListener(KeyboardController.FaultListener listener, Executor executor) {
+        mStateDebouncer.setFaultListener(listener == null ? null
+                : status -> executor.execute(() -> listener.onFault(status)));
+    }
+
+    public KeyboardStateDebouncer getStateDebouncer() {
+        return mStateDebouncer;
+    }
+
+    public void setConnectSettleMs(long settleMs) {
+        mStateDebouncer.setConnectSettleMs(settleMs);
+    }
+
+    public void setDisconnectSettleMs(long settleMs) {
+        mStateDebouncer.setDisconnectSettleMs(settleMs);
+    }
+
+    /**
+     * Reads connect state straight from the sysfs attribute instead of scanning USB reports
+     * on every file event; the USB query is only used when the value is ambiguous. Needs a
+     * driver that calls sysfs_notify on changes. Takes effect on the next {@link #start()}.
+     */
+    public void setSysfsFastPathEnabled(boolean enabled) {
+        mSysfsFastPathEnabled = enabled;
+    }
+
+    public boolean isSysfsFastPathActive() {
+        return mSysfsMonitor.isRunning();
+    }
+
+    /**
+     * Which file events trigger a report scan. The observer keeps watching all of them.
+     */
+    public void setFileEventMask(int eventMask) {
+        mFileEventCoalescer.setEventMask(eventMask);
+    }
+
+    public void setFileEventDebounceMs(long debounceMs) {
+        mFileEventCoalescer.setDebounceMs(debounceMs);
+    }
+
+    public FileEventCoalescer getFileEventCoalescer() {
+        return mFileEventCoalescer;
     }
 
     public void addKeyboardStateListener(KeyboardStateListener listener) {
-        synchronized (mKeyboardStateListeners) {
-            mKeyboardStateListeners.add(listener);
-        }
+        mStateDebouncer.addListener(listener, null);
+    }
+
+    /**
+     * Listeners added with an executor are called there, so they can't hold up the
+     * keyboard handler thread. Changes they haven't seen yet collapse into the latest state.
+     */
+    public void addKeyboardStateListener(KeyboardStateListener listener, Executor executor) {
+        mStateDebouncer.addListener(listener, executor);
     }
 
     public void removeKeyboardStateListener(KeyboardStateListener listener) {
-        synchronized (mKeyboardStateListeners) {
-            mKeyboardStateListeners.remove(listener);
+        mStateDebouncer.removeListener(listener);
+    }
+
+    /**
+     * Starts recording every keyboard frame into a ring of {@code slotCount} frames in {@code file}.
+     */
+    public synchronized void startCapture(File file, int slotCount) throws IOException {
+        stopCapture();
+        mCapture = new FrameCaptureRing(file, slotCount);
+        for (KeyboardDevice device : getDeviceArray()) {
+            device.getController().setCapture(mCapture);
+        }
+    }
+
+    public synchronized void stopCapture() {
+        if (mCapture == null) return;
+        for (KeyboardDevice device : getDeviceArray()) {
+            device.getController().setCapture(null);
+        }
+        try {
+            mCapture.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close capture failed", e);
+        }
+        mCapture = null;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("state=");
+        pw.println(getKeyboardState());
+        pw.print(prefix);
+        pw.print("sysfs fast path: ");
+        pw.println(mSysfsMonitor.isRunning() ? "active" : "off");
+        pw.print(prefix);
+        pw.print("file events: received=");
+        pw.print(mFileEventCoalescer.getReceivedCount());
+        pw.print(" dropped=");
+        pw.print(mFileEventCoalescer.getDroppedCount());
+        pw.print(" merged=");
+        pw.print(mFileEventCoalescer.getMergedCount());
+        pw.print(" deferred=");
+        pw.print(mFileEventCoalescer.getDeferredCount());
+        pw.print(" scheduled=");
+        pw.println(mFileEventCoalescer.getScheduledCount());
+        pw.print(prefix);
+        pw.print("snapshot writes: ");
+        pw.println(mSnapshotWriter.getWriteCount());
+        for (KeyboardDevice device : getDeviceArray()) {
+            FrameDecoder decoder = device.getController().getReportDecoder();
+            pw.print(prefix);
+            pw.print("device ");
+            pw.print(device.getName());
+            pw.print(": state=");
+            pw.print(device.getKeyboardState());
+            pw.print(" frames_decoded=");
+            pw.print(decoder.getFrameCount());
+            pw.print(" unchecked=");
+            pw.print(decoder.getUncheckedFrameCount());
+            pw.print(" checksum_errors=");
+            pw.print(decoder.getChecksumErrorCount());
+            pw.print(" length_errors=");
+            pw.print(decoder.getLengthErrorCount());
+            pw.print(" skipped_bytes=");
+            pw.println(decoder.getSkippedByteCount());
+            device.getController().getCommandChannel().dump(pw, prefix + "  ");
+        }
+        if (mPollScheduler != null) {
+            mPollScheduler.dump(pw, prefix);
+        }
+        mPowerGate.dump(pw, prefix);
+        mWatchdog.dump(pw, prefix);
+        mStateDebouncer.dump(pw, prefix);
+        mStats.dump(pw, prefix);
+        KeyboardTrace.dump(pw, prefix);
+        FrameCaptureRing capture = mCapture;
+        if (capture != null) {
+            pw.print(prefix);
+            pw.print("capturing, frames=");
+            pw.println(capture.getWrittenCount());
         }
     }
 
     private class KeyboardHandler extends Handler {
         private static final int MSG_READ_CONNECT_STATE = 1;
         private static final int MSG_GET_REPORT_DATA = 2;
-        private static final int MSG_GET_DEVICE_TIME_OUT = 3;
+        private static final int MSG_SYSFS_STATUS = 3;
+
+        // arg1 of MSG_READ_CONNECT_STATE: run even while the power gate is parked
+        private static final int ARG_FORCE = 1;
 
         public KeyboardHandler(Looper looper) {
             super(looper);
@@ -318,21 +804,58 @@ public class XiaomiKeyboardManager {
 
         @Override
         public void handleMessage(@NonNull Message msg) {
+            if (isRetiredHandlerThread()) return;
             switch (msg.what) {
                 case MSG_READ_CONNECT_STATE:
-                    doCheckConnectionState();
+                    mStats.onDequeue(false);
+                    if (msg.arg1 != ARG_FORCE && !mPowerGate.allowQuery()) break;
+                    checkConnectionState();
                     break;
                 case MSG_GET_REPORT_DATA:
-                    doGetReportData();
+                    mFileEventCoalescer.onScanStarted();
+                    mStats.onDequeue(true);
+                    if (!mPowerGate.allowScan()) break;
+                    for (KeyboardDevice device : getDevicesOrReportMissing()) {
+                        device.getController().scanReportData();
+                    }
                     break;
-                case MSG_GET_DEVICE_TIME_OUT:
-                    XiaomiKeyboardUtil.resetKeyboardHost();
+                case MSG_SYSFS_STATUS:
+                    mStats.onDequeue(true);
+                    if (msg.arg1 == SysfsConnStatusMonitor.STATUS_AMBIGUOUS) {
+                        if (mPowerGate.allowQuery()) {
+                            checkConnectionState();
+                            // Whatever the controllers answered, changed or not
+                            onDeviceStateChanged();
+                        }
+                    } else {
+                        onSysfsState(msg.arg1 == SysfsConnStatusMonitor.STATUS_CONNECTED
+                                ? KEYBOARD_STATE_CONNECTED : KEYBOARD_STATE_DISCONNECTED);
+                    }
                     break;
             }
         }
     }
 
-    public interface KeyboardStateListener {
-        void onKeyboardStateChanged(int state);
+    /**
+     * True on a handler thread that has been stopped, typically one the watchdog gave up
+     * on that has just come back from its blocked call.
+     */
+    private boolean isRetiredHandlerThread() {
+        Thread thread = Thread.currentThread();
+        return thread instanceof KeyboardHandlerThread
+                && ((KeyboardHandlerThread) thread).mGeneration != mHandlerGeneration;
+    }
+
+    private static class KeyboardHandlerThread extends HandlerThread {
+        final int mGeneration;
+
+        KeyboardHandlerThread(int generation) {
+            super("keyboard_handler");
+            mGeneration = generation;
+        }
+    }
+
+    public interface KeyboardStateListener
+            extends ink.kscope.xiaomikeyboardmanager.protocol.KeyboardStateListener {
     }
 }
@@ -19,64 +19,148 @@ package ink.kscope.xiaomikeyboardmanager;
 import android.app.Service;
 import android.content.Intent;
 import android.hardware.input.InputManager;
+import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
-import android.view.InputDevice;
+
+import ink.kscope.xiaomikeyboardmanager.protocol.FrameCaptureRing;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 
 public class XiaomiKeyboardService extends Service implements XiaomiKeyboardManager.KeyboardStateListener {
 
     private static final String TAG = "XiaomiKeyboardService";
 
-    private InputManager mInputManager;
+    // Signature permission guarding the binder interface
+    public static final String PERMISSION_ACCESS_KEYBOARD =
+            "ink.kscope.xiaomikeyboardmanager.permission.ACCESS_KEYBOARD";
+
+    public static final String ACTION_START_CAPTURE =
+            "ink.kscope.xiaomikeyboardmanager.action.START_CAPTURE";
+    public static final String ACTION_STOP_CAPTURE =
+            "ink.kscope.xiaomikeyboardmanager.action.STOP_CAPTURE";
+    private static final String CAPTURE_FILE_NAME = "keyboard_capture.bin";
+    private static final String SNAPSHOT_FILE_NAME = "keyboard_snapshot.bin";
+
+    private KeyboardInputDeviceTracker mInputDeviceTracker;
     private XiaomiKeyboardManager mXiaomiKeyboardManager;
+    private KeyboardStatusBroadcaster mStatusBroadcaster;
+
+    private final IKeyboardManager.Stub mBinder = new IKeyboardManager.Stub() {
+        @Override
+        public KeyboardStatus getKeyboardStatus() {
+            enforceAccess();
+            return mXiaomiKeyboardManager.getKeyboardStatus();
+        }
+
+        @Override
+        public TransferStats getTransferStats() {
+            enforceAccess();
+            return mXiaomiKeyboardManager.getTransferStats();
+        }
+
+        @Override
+        public void registerCallback(IKeyboardStatusCallback callback) {
+            enforceAccess();
+            mStatusBroadcaster.register(callback, Binder.getCallingUid());
+        }
+
+        @Override
+        public void unregisterCallback(IKeyboardStatusCallback callback) {
+            enforceAccess();
+            mStatusBroadcaster.unregister(callback);
+        }
+    };
 
     public XiaomiKeyboardService() {
     }
 
+    // The manifest only checks whoever binds; the binder itself can be handed on
+    private void enforceAccess() {
+        enforceCallingOrSelfPermission(PERMISSION_ACCESS_KEYBOARD, null);
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
-        throw new UnsupportedOperationException("Not yet implemented");
+        return mBinder;
     }
 
     @Override
     public void onCreate() {
         super.onCreate();
-        mInputManager = getSystemService(InputManager.class);
-        setKeyboardEnabled(false);
+        mInputDeviceTracker = new KeyboardInputDeviceTracker(getSystemService(InputManager.class));
+        mInputDeviceTracker.start(new Handler(Looper.getMainLooper()));
         mXiaomiKeyboardManager = new XiaomiKeyboardManager(this);
-        mXiaomiKeyboardManager.addKeyboardStateListener(this);
+        // Readable at boot before the user unlocks
+        mXiaomiKeyboardManager.setSnapshotFile(new File(
+                createDeviceProtectedStorageContext().getFilesDir(), SNAPSHOT_FILE_NAME));
+        // Off unless the device's driver calls sysfs_notify on conn_status
+        mXiaomiKeyboardManager.setSysfsFastPathEnabled(
+                getResources().getBoolean(R.bool.config_sysfsFastPath));
+        mStatusBroadcaster = new KeyboardStatusBroadcaster(new Handler(Looper.getMainLooper()),
+                mXiaomiKeyboardManager::getKeyboardStatus);
+        mXiaomiKeyboardManager.addKeyboardStateListener(this, getMainExecutor());
+        mXiaomiKeyboardManager.setFaultListener(status -> mStatusBroadcaster.onStatusChanged(),
+                getMainExecutor());
         mXiaomiKeyboardManager.start();
+        // Connected already if a snapshot said so and the keyboard is still attached
+        setKeyboardEnabled(mXiaomiKeyboardManager.getKeyboardState()
+                == XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        String action = intent != null ? intent.getAction() : null;
+        if (ACTION_START_CAPTURE.equals(action)) {
+            File file = new File(getFilesDir(), CAPTURE_FILE_NAME);
+            try {
+                mXiaomiKeyboardManager.startCapture(file, FrameCaptureRing.DEFAULT_SLOT_COUNT);
+                Log.i(TAG, "capturing keyboard frames to " + file);
+            } catch (IOException e) {
+                Log.e(TAG, "start capture failed", e);
+            }
+        } else if (ACTION_STOP_CAPTURE.equals(action)) {
+            mXiaomiKeyboardManager.stopCapture();
+        }
+        return START_STICKY;
     }
 
     @Override
     public void onDestroy() {
         mXiaomiKeyboardManager.removeKeyboardStateListener(this);
+        mXiaomiKeyboardManager.setFaultListener(null, null);
         mXiaomiKeyboardManager.stop();
+        mStatusBroadcaster.kill();
+        mInputDeviceTracker.stop();
         super.onDestroy();
     }
 
     private void setKeyboardEnabled(boolean enabled) {
-        int id = getKeyboardDeviceId();
-        if (id >= 0) {
-            if (enabled) mInputManager.enableInputDevice(id);
-            else mInputManager.disableInputDevice(id);
-        }
+        mInputDeviceTracker.setKeyboardEnabled(enabled);
     }
 
-    private int getKeyboardDeviceId() {
-        for (int id : mInputManager.getInputDeviceIds()) {
-            InputDevice inputDevice = mInputManager.getInputDevice(id);
-            if (XiaomiKeyboardUtil.deviceIsXiaomiKeyboard(
-                    inputDevice.getVendorId(), inputDevice.getProductId())) {
-                return id;
-            }
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("XiaomiKeyboardService:");
+        if (mXiaomiKeyboardManager != null) {
+            mXiaomiKeyboardManager.dump(pw, "  ");
+        }
+        if (mStatusBroadcaster != null) {
+            mStatusBroadcaster.dump(pw, "  ");
         }
-        return -1;
     }
 
     @Override
     public void onKeyboardStateChanged(int state) {
         Log.d(TAG, "keyboard state = " + state);
+        mStatusBroadcaster.onStatusChanged();
+        if (state == XiaomiKeyboardManager.KEYBOARD_STATE_UNKNOWN) return;
         setKeyboardEnabled(state == XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED);
+        mXiaomiKeyboardManager.onKeyboardStateApplied();
     }
 }
\ No newline at end of file
@@ -16,11 +16,13 @@
 
 package ink.kscope.xiaomikeyboardmanager;
 
-import android.util.Log;
+import android.os.SystemClock;
+
+import ink.kscope.xiaomikeyboardmanager.protocol.KeyboardCommand;
+import ink.kscope.xiaomikeyboardmanager.protocol.KeyboardProtocol;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 public class XiaomiKeyboardUtil {
 
@@ -29,52 +31,50 @@ public class XiaomiKeyboardUtil {
     public static final String KEYBOARD_FILE_PATH = "/sys/bus/platform/drivers/xiaomi-keyboard/soc:xiaomi_keyboard/xiaomi_keyboard_conn_status";
     public static final File KEYBOARD_FILE = new File(KEYBOARD_FILE_PATH);
 
+    private static volatile long sLastWriteTime;
+
+    private static final SysfsCommandChannel sCommandChannel = new SysfsCommandChannel(
+            KEYBOARD_FILE, () -> sLastWriteTime = SystemClock.uptimeMillis());
+
     public static void enableKeyboardDevice() {
-        writeKeyboardDevice("enable_keyboard");
+        writeKeyboardDevice(KeyboardCommand.ENABLE_KEYBOARD);
     }
 
     public static void resetKeyboardDevice() {
-        writeKeyboardDevice("reset");
+        writeKeyboardDevice(KeyboardCommand.RESET_KEYBOARD);
     }
 
     public static void resetKeyboardHost() {
-        writeKeyboardDevice("host_reset");
+        writeKeyboardDevice(KeyboardCommand.RESET_HOST);
     }
 
     public static boolean deviceIsXiaomiKeyboard(int vendorId, int productId) {
-        return vendorId == 0x3206 && productId == 0x3ffc;
+        return SupportedKeyboards.isSupported(vendorId, productId);
+    }
+
+    /**
+     * Queues {@code command} on the shared sysfs channel; never blocks on the write.
+     */
+    public static CompletableFuture<Boolean> writeKeyboardDevice(KeyboardCommand command) {
+        return sCommandChannel.send(command);
+    }
+
+    public static CompletableFuture<Boolean> writeKeyboardDevice(String command) {
+        return sCommandChannel.send(command.getBytes());
     }
 
-    public static void writeKeyboardDevice(String command) {
-        if (KEYBOARD_FILE.exists()) {
-            try {
-                FileOutputStream out = new FileOutputStream(KEYBOARD_FILE);
-                out.write(command.getBytes());
-                out.flush();
-                out.close();
-                return;
-            } catch (IOException e) {
-                Log.e(TAG, "write xiaomi_keyboard_conn_status error", e);
-                return;
-            }
-        }
-        Log.e(TAG, "xiaomi_keyboard_conn_status not exists");
+    public static SysfsCommandChannel getCommandChannel() {
+        return sCommandChannel;
     }
 
-    public static byte[] commandGetConnectState() {
-        byte[] bytes = {78, 49, Byte.MIN_VALUE, 56, -95, 1, 1, 0};
-        bytes[7] = getSum(bytes, 0, 7);
-        return bytes;
+    /**
+     * Uptime of the last successful write to {@link #KEYBOARD_FILE}, or 0 if none.
+     */
+    public static long getLastWriteTime() {
+        return sLastWriteTime;
     }
 
-    public static synchronized byte getSum(byte[] data, int start, int length) {
-        byte sum;
-        synchronized (XiaomiKeyboardUtil.class) {
-            sum = 0;
-            for (int i = start; i < start + length; i++) {
-                sum = (byte) (data[i] + sum);
-            }
-        }
-        return sum;
+    public static byte getSum(byte[] data, int start, int length) {
+        return KeyboardProtocol.checksum(data, start, length);
     }
 }
@@ -0,0 +1,192 @@
+package ink.kscope.xiaomikeyboardmanager;
+
+import ink.kscope.xiaomikeyboardmanager.protocol.KeyboardProtocol;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory keyboard for JVM tests. Answers connect-state queries with the scripted
+ * state after a configurable latency, can drop a number of responses, and pushes
+ * connect-state reports through the report stream.
+ */
+public class FakeKeyboardTransport implements KeyboardTransport {
+
+    public static final byte STATE_CONNECTED = 35;
+    public static final byte STATE_DISCONNECTED = 0;
+    public static final byte STATE_TRX_CHECK_FAILED = 1;
+    public static final byte STATE_PIN_CONNECT_FAILED = 67;
+
+    private final ArrayDeque<byte[]> mResponses = new ArrayDeque<>();
+    private final ArrayDeque<Byte> mScriptedStates = new ArrayDeque<>();
+    private final ScheduledExecutorService mReportExecutor = new ScheduledThreadPoolExecutor(1);
+
+    private final AtomicInteger mWriteCount = new AtomicInteger();
+    private final AtomicInteger mReadCount = new AtomicInteger();
+
+    private volatile boolean mAttached = true;
+    private volatile byte mConnectState = STATE_DISCONNECTED;
+    private volatile long mLatencyMs;
+    private volatile int mDropCount;
+    private volatile ReportCallback mReportCallback;
+    private int mAbortGeneration;
+
+    /**
+     * A report as the keyboard is known to send it: header at offset 0 and the state at its
+     * fixed offset. No length byte or checksum, since real reports aren't confirmed to
+     * carry them.
+     */
+    public static byte[] connectStateFrame(byte state) {
+        byte[] frame = new byte[KeyboardProtocol.FRAME_SIZE];
+        frame[0] = 38;
+        frame[2] = 56;
+        frame[4] = -94;
+        frame[9] = state;
+        return frame;
+    }
+
+    public void setAttached(boolean attached) {
+        mAttached = attached;
+    }
+
+    public void setConnectState(byte state) {
+        mConnectState = state;
+    }
+
+    /**
+     * Queries answer with these states in order, then with {@link #setConnectState}.
+     */
+    public synchronized void scriptConnectStates(byte... states) {
+        for (byte state : states) {
+            mScriptedStates.add(state);
+        }
+    }
+
+    public void setLatencyMs(long latencyMs) {
+        mLatencyMs = latencyMs;
+    }
+
+    public void dropNextResponses(int count) {
+        mDropCount = count;
+    }
+
+    public int getWriteCount() {
+        return mWriteCount.get();
+    }
+
+    public int getReadCount() {
+        return mReadCount.get();
+    }
+
+    /**
+     * Delivers a connect-state report through the report stream after the configured latency.
+     */
+    public void pushReport(byte state) {
+        pushReportBytes(connectStateFrame(state));
+    }
+
+    /**
+     * Delivers {@code data} as one transfer on the report stream, whatever it contains.
+     */
+    public void pushReportBytes(byte[] data) {
+        mReportExecutor.schedule(() -> {
+            ReportCallback callback = mReportCallback;
+            if (callback != null) {
+                callback.onReportReceived(data, data.length);
+            }
+        }, mLatencyMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean openForTransfer() {
+        return mAttached;
+    }
+
+    @Override
+    public boolean openForReport() {
+        return mAttached;
+    }
+
+    @Override
+    public int write(byte[] data, int length, int timeoutMs) {
+        if (!mAttached) return -1;
+        mWriteCount.incrementAndGet();
+        if (data[4] != -95) return length;
+        synchronized (this) {
+            if (mDropCount > 0) {
+                mDropCount--;
+                return length;
+            }
+            Byte scripted = mScriptedStates.poll();
+            mResponses.add(connectStateFrame(scripted != null ? scripted : mConnectState));
+            notifyAll();
+        }
+        return length;
+    }
+
+    @Override
+    public int read(byte[] data, int length, int timeoutMs) {
+        if (!mAttached) return -1;
+        mReadCount.incrementAndGet();
+        sleep(mLatencyMs);
+        synchronized (this) {
+            int generation = mAbortGeneration;
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (mResponses.isEmpty()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || mAbortGeneration != generation) return -1;
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+            }
+            byte[] response = mResponses.poll();
+            int count = Math.min(length, response.length);
+            System.arraycopy(response, 0, data, 0, count);
+            return count;
+        }
+    }
+
+    @Override
+    public int readReport(byte[] data, int length, int timeoutMs) {
+        return -1;
+    }
+
+    @Override
+    public boolean startReportStream(ReportCallback callback) {
+        if (!mAttached) return false;
+        mReportCallback = callback;
+        return true;
+    }
+
+    @Override
+    public void stopReportStream() {
+        mReportCallback = null;
+    }
+
+    @Override
+    public synchronized void abort() {
+        mAbortGeneration++;
+        notifyAll();
+    }
+
+    @Override
+    public void close() {
+        stopReportStream();
+        mReportExecutor.shutdownNow();
+    }
+
+    private static void sleep(long ms) {
+        if (ms <= 0) return;
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ink.kscope.xiaomikeyboardmanager;
+
+import ink.kscope.xiaomikeyboardmanager.protocol.FrameCaptureRing;
+import ink.kscope.xiaomikeyboardmanager.protocol.FrameReplayer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameReplayTest {
+
+    @Test
+    public void replay_throughController_reproducesStateChanges() throws Exception {
+        File file = File.createTempFile("capture", ".bin");
+        file.deleteOnExit();
+        FakeKeyboardTransport transport = new FakeKeyboardTransport();
+        KeyboardController recorder = new KeyboardController(transport, Runnable::run);
+        try (FrameCaptureRing ring = new FrameCaptureRing(file, 16)) {
+            recorder.setCapture(ring);
+            transport.setConnectState(FakeKeyboardTransport.STATE_CONNECTED);
+            recorder.checkConnectionState();
+            transport.setConnectState(FakeKeyboardTransport.STATE_DISCONNECTED);
+            recorder.checkConnectionState();
+        }
+        transport.close();
+
+        KeyboardController player = new KeyboardController(transport, Runnable::run);
+        List<Integer> states = new ArrayList<>();
+        player.addKeyboardStateListener(states::add);
+        new FrameReplayer(file).replay((direction, frame, length, timestamp) ->
+                player.replayFrame(direction, frame), false);
+        assertEquals(Arrays.asList(XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED,
+                XiaomiKeyboardManager.KEYBOARD_STATE_DISCONNECTED), states);
+    }
+}
@@ -0,0 +1,124 @@
+package ink.kscope.xiaomikeyboardmanager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HandlerWatchdogTest {
+
+    private final List<String> mActions = new ArrayList<>();
+    private final List<Runnable> mPosted = new ArrayList<>();
+    private long mTransferMs;
+    private HandlerWatchdog mWatchdog;
+
+    @Before
+    public void setUp() {
+        mWatchdog = new HandlerWatchdog(new HandlerWatchdog.Recovery() {
+            @Override
+            public long getOldestTransferMs() {
+                return mTransferMs;
+            }
+
+            @Override
+            public void abortTransfers() {
+                mActions.add("abort");
+            }
+
+            @Override
+            public void reopenSessions() {
+                mActions.add("reopen");
+            }
+
+            @Override
+            public void resetHost() {
+                mActions.add("reset");
+            }
+
+            @Override
+            public void restartThread() {
+                mActions.add("restart");
+            }
+        });
+        mWatchdog.setStallThresholdMs(2000);
+        mWatchdog.setTarget(mPosted::add);
+    }
+
+    private void runPosted() {
+        for (Runnable runnable : mPosted) {
+            runnable.run();
+        }
+        mPosted.clear();
+    }
+
+    @Test
+    public void responsiveHandler_isLeftAlone() {
+        for (long now = 0; now < 10000; now += 500) {
+            mWatchdog.check(now);
+            runPosted();
+        }
+        assertEquals(Collections.emptyList(), mActions);
+        assertEquals(HandlerWatchdog.LEVEL_NONE, mWatchdog.getLevel());
+    }
+
+    @Test
+    public void stalledHandler_escalatesOneStepPerThreshold() {
+        mWatchdog.check(0);
+        assertEquals(1, mPosted.size());
+        for (long now = 500; now <= 8000; now += 500) {
+            mWatchdog.check(now);
+        }
+        assertEquals(Arrays.asList("abort", "reopen", "reset", "restart"), mActions);
+        assertEquals(1, mWatchdog.getEscalationCount(HandlerWatchdog.LEVEL_RESTART_THREAD));
+        assertEquals(HandlerWatchdog.LEVEL_NONE, mWatchdog.getLevel());
+    }
+
+    @Test
+    public void slowQueryWithinItsDeadline_doesNotEscalate() {
+        mWatchdog.setStallThresholdMs(HandlerWatchdog.DEFAULT_STALL_THRESHOLD_MS);
+        // The handler is busy with a query whose retries use up its whole deadline
+        long queryMs = KeyboardController.DEFAULT_QUERY_DEADLINE_MS;
+        mWatchdog.check(0);
+        for (long now = 500; now <= queryMs; now += 500) {
+            mTransferMs = KeyboardController.DEFAULT_TRANSFER_TIMEOUT_MS;
+            mWatchdog.check(now);
+        }
+        mTransferMs = 0;
+        runPosted();
+        mWatchdog.check(queryMs + 500);
+        assertEquals(Collections.emptyList(), mActions);
+        assertEquals(HandlerWatchdog.LEVEL_NONE, mWatchdog.getLevel());
+    }
+
+    @Test
+    public void handlerBlockedPastDeadlineAndMargin_escalates() {
+        mWatchdog.setStallThresholdMs(HandlerWatchdog.DEFAULT_STALL_THRESHOLD_MS);
+        mWatchdog.check(0);
+        long now = 500;
+        for (; now < HandlerWatchdog.DEFAULT_STALL_THRESHOLD_MS; now += 500) {
+            mWatchdog.check(now);
+        }
+        assertEquals(Collections.emptyList(), mActions);
+        mWatchdog.check(now);
+        assertEquals(Collections.singletonList("abort"), mActions);
+        assertEquals(HandlerWatchdog.LEVEL_ABORT_TRANSFER, mWatchdog.getLevel());
+    }
+
+    @Test
+    public void longTransfer_isAbortedAndRecoveryEndsEpisode() {
+        mTransferMs = 2500;
+        mWatchdog.check(0);
+        assertEquals(Collections.singletonList("abort"), mActions);
+        assertEquals(HandlerWatchdog.LEVEL_ABORT_TRANSFER, mWatchdog.getLevel());
+
+        mTransferMs = 0;
+        runPosted();
+        mWatchdog.check(500);
+        assertEquals(HandlerWatchdog.LEVEL_NONE, mWatchdog.getLevel());
+    }
+}
@@ -0,0 +1,64 @@
+package ink.kscope.xiaomikeyboardmanager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HostResetSchedulerTest {
+
+    private final List<Long> mDelays = new ArrayList<>();
+    private Runnable mPending;
+    private int mResets;
+    private HostResetScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new HostResetScheduler(new KeyboardStateDebouncer.Scheduler() {
+            @Override
+            public void postDelayed(Runnable runnable, long delayMs) {
+                assertNull(mPending);
+                mPending = runnable;
+                mDelays.add(delayMs);
+            }
+
+            @Override
+            public void removeCallbacks(Runnable runnable) {
+                if (mPending == runnable) mPending = null;
+            }
+        }, () -> mResets++);
+        mScheduler.setDelays(1000, 3000);
+    }
+
+    private void runPending() {
+        Runnable pending = mPending;
+        mPending = null;
+        pending.run();
+    }
+
+    @Test
+    public void missingDevice_keepsResettingWithGrowingDelay() {
+        mScheduler.onDeviceMissing();
+        runPending();
+        runPending();
+        runPending();
+        assertEquals(3, mResets);
+        assertEquals(Arrays.asList(1000L, 2000L, 3000L, 3000L), mDelays);
+    }
+
+    @Test
+    public void foundDevice_stopsResetsAndRestartsDelay() {
+        mScheduler.onDeviceMissing();
+        runPending();
+        mScheduler.onDeviceFound();
+        assertNull(mPending);
+        assertEquals(1, mResets);
+
+        mScheduler.onDeviceMissing();
+        assertEquals(Long.valueOf(1000), mDelays.get(mDelays.size() - 1));
+    }
+}
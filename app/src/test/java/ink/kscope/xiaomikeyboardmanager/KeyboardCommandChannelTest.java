@@ -0,0 +1,198 @@
+package ink.kscope.xiaomikeyboardmanager;
+
+import ink.kscope.xiaomikeyboardmanager.protocol.KeyboardCommand;
+import ink.kscope.xiaomikeyboardmanager.protocol.KeyboardProtocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class KeyboardCommandChannelTest {
+
+    private static final byte COMMAND_A = 0x10;
+    private static final byte RESPONSE_A = 0x11;
+    private static final byte COMMAND_B = 0x20;
+    private static final byte RESPONSE_B = 0x21;
+    private static final byte UNSOLICITED = 0x30;
+
+    private final List<Byte> mWritten = new ArrayList<>();
+    private final ArrayDeque<byte[]> mResponses = new ArrayDeque<>();
+    private final List<Byte> mUnsolicited = new ArrayList<>();
+    private int mReadCount;
+    private int mPumpsScheduled;
+    private Runnable mOnRead;
+    private KeyboardCommandChannel mChannel;
+
+    @Before
+    public void setUp() {
+        // A pump only runs when the test asks for one
+        mChannel = new KeyboardCommandChannel(new KeyboardCommandChannel.Link() {
+            @Override
+            public boolean open() {
+                return true;
+            }
+
+            @Override
+            public boolean write(byte[] frame, int timeoutMs) {
+                mWritten.add(frame[KeyboardProtocol.OFFSET_COMMAND]);
+                return true;
+            }
+
+            @Override
+            public int read(byte[] buf, int timeoutMs) {
+                mReadCount++;
+                if (mOnRead != null) {
+                    mOnRead.run();
+                }
+                byte[] response = mResponses.poll();
+                if (response == null) {
+                    try {
+                        Thread.sleep(timeoutMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return -1;
+                }
+                System.arraycopy(response, 0, buf, 0, response.length);
+                return response.length;
+            }
+        }, runnable -> mPumpsScheduled++);
+        mChannel.subscribe((frame, length) ->
+                mUnsolicited.add(frame[KeyboardProtocol.OFFSET_COMMAND]));
+    }
+
+    private static byte[] frame(byte command) {
+        byte[] frame = new byte[KeyboardProtocol.HEADER_SIZE + 1];
+        frame[0] = KeyboardProtocol.REPORT_ID;
+        frame[KeyboardProtocol.OFFSET_ADDRESS] = KeyboardProtocol.ADDRESS_KEYBOARD;
+        frame[KeyboardProtocol.OFFSET_COMMAND] = command;
+        return frame;
+    }
+
+    private static byte[] frame(byte command, byte subCommand) {
+        byte[] frame = frame(command);
+        frame[KeyboardProtocol.OFFSET_SUB_COMMAND] = subCommand;
+        return frame;
+    }
+
+    @Test
+    public void pipelinedCommands_areWrittenTogetherAndMatchedByCommand() throws Exception {
+        CompletableFuture<byte[]> a = mChannel.send(frame(COMMAND_A), RESPONSE_A, 1000);
+        CompletableFuture<byte[]> b = mChannel.send(frame(COMMAND_B), RESPONSE_B, 1000);
+        // Answers come back out of order, with an unsolicited frame in between
+        mResponses.add(frame(RESPONSE_B));
+        mResponses.add(frame(UNSOLICITED));
+        mResponses.add(frame(RESPONSE_A));
+        mChannel.pump();
+
+        assertEquals(2, mWritten.size());
+        assertEquals(3, mReadCount);
+        assertEquals(RESPONSE_A, a.get()[KeyboardProtocol.OFFSET_COMMAND]);
+        assertEquals(RESPONSE_B, b.get()[KeyboardProtocol.OFFSET_COMMAND]);
+        assertEquals(KeyboardProtocol.FRAME_SIZE, a.get().length);
+        assertEquals(1, mUnsolicited.size());
+        assertEquals(UNSOLICITED, (byte) mUnsolicited.get(0));
+    }
+
+    @Test
+    public void missingResponse_timesOut() throws Exception {
+        CompletableFuture<byte[]> a = mChannel.send(frame(COMMAND_A), RESPONSE_A, 50);
+        mChannel.pump();
+        assertTrue(a.isCompletedExceptionally());
+        try {
+            a.get();
+            fail("expected a timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertEquals(1, mChannel.getTimeoutCount());
+    }
+
+    @Test
+    public void pumpUntil_stopsOnceItsRequestIsAnswered() {
+        CompletableFuture<byte[]> a = mChannel.send(frame(COMMAND_A), RESPONSE_A, 1000);
+        CompletableFuture<byte[]> b = mChannel.send(frame(COMMAND_B), RESPONSE_B, 1000);
+        mResponses.add(frame(RESPONSE_A));
+        mChannel.pumpUntil(a);
+        assertTrue(a.isDone());
+        assertFalse(b.isDone());
+
+        mResponses.add(frame(RESPONSE_B));
+        mChannel.pump();
+        assertTrue(b.isDone());
+        assertEquals(2, mWritten.size());
+    }
+
+    @Test
+    public void sameCommandDifferentSubCommand_eachGetsItsOwnAnswer() throws Exception {
+        CompletableFuture<byte[]> one = mChannel.send(frame(COMMAND_A, (byte) 1),
+                RESPONSE_A, 1, 1000);
+        CompletableFuture<byte[]> two = mChannel.send(frame(COMMAND_A, (byte) 2),
+                RESPONSE_A, 2, 1000);
+        mResponses.add(frame(RESPONSE_A, (byte) 2));
+        mResponses.add(frame(RESPONSE_A, (byte) 1));
+        mChannel.pump();
+
+        assertEquals(1, one.get()[KeyboardProtocol.OFFSET_SUB_COMMAND]);
+        assertEquals(2, two.get()[KeyboardProtocol.OFFSET_SUB_COMMAND]);
+    }
+
+    @Test
+    public void abort_failsQueuedRequests() {
+        CompletableFuture<byte[]> a = mChannel.send(frame(COMMAND_A), RESPONSE_A, 1000);
+        mChannel.abort();
+        assertTrue(a.isCompletedExceptionally());
+        try {
+            a.join();
+            fail("expected a cancellation");
+        } catch (CancellationException e) {
+            // expected
+        }
+        mChannel.pump();
+        assertEquals(0, mWritten.size());
+    }
+
+    @Test
+    public void abortDuringPump_failsOutstandingRequests() {
+        CompletableFuture<byte[]> a = mChannel.send(frame(COMMAND_A), RESPONSE_A, 1000);
+        // The abort comes in while the exchange is reading something else
+        mOnRead = mChannel::abort;
+        mResponses.add(frame(UNSOLICITED));
+        mChannel.pumpUntil(a);
+        try {
+            a.join();
+            fail("expected a cancellation");
+        } catch (CancellationException e) {
+            // expected
+        }
+        assertEquals(1, mReadCount);
+    }
+
+    @Test
+    public void abortWithNothingRunning_leavesTheNextRequestAlone() {
+        mChannel.abort();
+        mResponses.add(frame(KeyboardProtocol.RESPONSE_CONNECT_STATE));
+        CompletableFuture<byte[]> a = mChannel.sendNow(KeyboardCommand.GET_CONNECT_STATE, 1000);
+        assertTrue(a.isDone());
+        assertFalse(a.isCompletedExceptionally());
+    }
+
+    @Test
+    public void sendNow_pumpsOnTheCallingThreadOnly() {
+        byte[] response = frame(KeyboardProtocol.RESPONSE_CONNECT_STATE);
+        mResponses.add(response);
+        CompletableFuture<byte[]> a = mChannel.sendNow(KeyboardCommand.GET_CONNECT_STATE, 1000);
+        assertTrue(a.isDone());
+        assertFalse(a.isCompletedExceptionally());
+        assertEquals(0, mPumpsScheduled);
+    }
+}
@@ -0,0 +1,158 @@
+package ink.kscope.xiaomikeyboardmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the connect/disconnect path against {@link FakeKeyboardTransport} on the host.
+ */
+public class KeyboardControllerTest {
+
+    private FakeKeyboardTransport mTransport;
+    private KeyboardController mController;
+    private final BlockingQueue<Integer> mStates = new ArrayBlockingQueue<>(16);
+
+    @Before
+    public void setUp() {
+        mTransport = new FakeKeyboardTransport();
+        mController = new KeyboardController(mTransport, Runnable::run);
+        mController.addKeyboardStateListener(mStates::add);
+    }
+
+    @After
+    public void tearDown() {
+        mController.stop();
+        mTransport.close();
+    }
+
+    @Test
+    public void checkConnectionState_connected_notifiesListener() {
+        mTransport.setConnectState(FakeKeyboardTransport.STATE_CONNECTED);
+        mController.checkConnectionState();
+        assertEquals(Integer.valueOf(XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED), mStates.poll());
+        assertEquals(XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED, mController.getKeyboardState());
+    }
+
+    @Test
+    public void checkConnectionState_detached_doesNotTransfer() {
+        mTransport.setAttached(false);
+        mController.checkConnectionState();
+        assertEquals(0, mTransport.getWriteCount());
+        assertTrue(mStates.isEmpty());
+    }
+
+    @Test
+    public void checkConnectionState_droppedResponse_retries() {
+        mTransport.setConnectState(FakeKeyboardTransport.STATE_CONNECTED);
+        mTransport.dropNextResponses(1);
+        mController.checkConnectionState();
+        assertEquals(2, mTransport.getWriteCount());
+        assertEquals(Integer.valueOf(XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED), mStates.poll());
+    }
+
+    @Test
+    public void abort_cutsBlockedTransferShort() throws Exception {
+        mTransport.dropNextResponses(Integer.MAX_VALUE);
+        mController.setQueryDeadlineMs(10000);
+        mController.setTransferTimeoutMs(5000);
+        Thread aborter = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return;
+            }
+            mController.abort();
+        });
+        aborter.start();
+        long start = System.nanoTime();
+        mController.checkConnectionState();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        aborter.join();
+        assertTrue("elapsed " + elapsedMs + "ms", elapsedMs < 2000);
+    }
+
+    @Test
+    public void syncState_makesMatchingQueryAnswerAChange() {
+        mTransport.setConnectState(FakeKeyboardTransport.STATE_CONNECTED);
+        mController.checkConnectionState();
+        mController.syncState(XiaomiKeyboardManager.KEYBOARD_STATE_DISCONNECTED);
+        mStates.clear();
+
+        mController.checkConnectionState();
+        assertEquals(Integer.valueOf(XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED), mStates.poll());
+    }
+
+    @Test
+    public void checkConnectionState_skipsFailureStates() {
+        mTransport.scriptConnectStates(FakeKeyboardTransport.STATE_TRX_CHECK_FAILED,
+                FakeKeyboardTransport.STATE_CONNECTED);
+        mController.checkConnectionState();
+        assertEquals(Integer.valueOf(XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED), mStates.poll());
+        assertTrue(mStates.isEmpty());
+    }
+
+    @Test
+    public void checkConnectionState_unresponsive_reportsUnknownByDeadline() {
+        mTransport.dropNextResponses(Integer.MAX_VALUE);
+        mController.setQueryDeadlineMs(300);
+        mController.setTransferTimeoutMs(100);
+        mController.setRetryPolicy(new BackoffRetryPolicy(Integer.MAX_VALUE, 10, 50));
+        long start = System.nanoTime();
+        mController.checkConnectionState();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("elapsed " + elapsedMs + "ms", elapsedMs < 450);
+        assertTrue(mTransport.getWriteCount() > 1);
+        assertEquals(Integer.valueOf(XiaomiKeyboardManager.KEYBOARD_STATE_UNKNOWN), mStates.poll());
+    }
+
+    @Test
+    public void report_sameState_notifiesOnce() throws InterruptedException {
+        mController.scanReportData();
+        mTransport.pushReport(FakeKeyboardTransport.STATE_CONNECTED);
+        mTransport.pushReport(FakeKeyboardTransport.STATE_CONNECTED);
+        assertEquals(Integer.valueOf(XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED),
+                mStates.poll(1, TimeUnit.SECONDS));
+        assertNull(mStates.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void report_frameSplitAcrossTransfers_notifiesListener() throws InterruptedException {
+        mController.scanReportData();
+        byte[] frame = FakeKeyboardTransport.connectStateFrame(FakeKeyboardTransport.STATE_CONNECTED);
+        mTransport.pushReportBytes(Arrays.copyOfRange(frame, 0, 7));
+        mTransport.pushReportBytes(Arrays.copyOfRange(frame, 7, frame.length));
+        assertEquals(Integer.valueOf(XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED),
+                mStates.poll(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void report_toListenerLatency() throws InterruptedException {
+        final int rounds = 200;
+        long[] latencies = new long[rounds];
+        mController.scanReportData();
+        for (int i = 0; i < rounds; i++) {
+            byte state = i % 2 == 0 ? FakeKeyboardTransport.STATE_CONNECTED
+                    : FakeKeyboardTransport.STATE_DISCONNECTED;
+            long start = System.nanoTime();
+            mTransport.pushReport(state);
+            assertNotNull(mStates.poll(1, TimeUnit.SECONDS));
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        long p50 = latencies[rounds / 2];
+        long p99 = latencies[rounds * 99 / 100];
+        // Far above scheduling noise on a loaded machine, but a report that waits out a
+        // transfer timeout still fails
+        assertTrue("report -> listener latency: p50=" + p50 / 1000 + "us p99=" + p99 / 1000 + "us",
+                p99 < TimeUnit.MILLISECONDS.toNanos(
+                        KeyboardController.DEFAULT_TRANSFER_TIMEOUT_MS / 2));
+    }
+}
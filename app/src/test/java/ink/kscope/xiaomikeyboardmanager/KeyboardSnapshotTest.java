@@ -0,0 +1,48 @@
+package ink.kscope.xiaomikeyboardmanager;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class KeyboardSnapshotTest {
+
+    @Test
+    public void roundTrip_keepsDevicesAndLayout() throws Exception {
+        UsbEndpointLayout layout = new UsbEndpointLayout(0, 0x81, 0x01,
+                UsbEndpointLayout.NONE, UsbEndpointLayout.NONE);
+        KeyboardSnapshot snapshot = new KeyboardSnapshot(
+                XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED, Collections.singletonList(
+                new KeyboardSnapshot.Device("/dev/bus/usb/001/002", 0x3206, 0x3ffc, layout)));
+
+        File file = File.createTempFile("snapshot", ".bin");
+        file.deleteOnExit();
+        snapshot.write(file);
+        KeyboardSnapshot read = KeyboardSnapshot.read(file);
+
+        assertNotNull(read);
+        assertEquals(XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED, read.getState());
+        assertEquals(1, read.getDevices().size());
+        KeyboardSnapshot.Device device = read.getDevices().get(0);
+        assertEquals("/dev/bus/usb/001/002", device.name);
+        assertEquals(0x3206, device.vendorId);
+        assertEquals(0x3ffc, device.productId);
+        assertEquals(layout, device.layout);
+        assertFalse(device.layout.hasReport());
+    }
+
+    @Test
+    public void unknownData_isRejected() throws Exception {
+        assertNull(KeyboardSnapshot.fromBytes(new byte[]{1, 2, 3, 4, 5, 6, 7}));
+        byte[] truncated = new KeyboardSnapshot(XiaomiKeyboardManager.KEYBOARD_STATE_UNKNOWN,
+                Collections.singletonList(new KeyboardSnapshot.Device("dev", 1, 2,
+                        new UsbEndpointLayout(0, 0x81, 0x01, 3, 0x84)))).toBytes();
+        assertNull(KeyboardSnapshot.fromBytes(Arrays.copyOf(truncated, truncated.length - 1)));
+        File missing = File.createTempFile("snapshot", ".bin");
+        missing.delete();
+        assertNull(KeyboardSnapshot.read(missing));
+    }
+}
@@ -0,0 +1,59 @@
+package ink.kscope.xiaomikeyboardmanager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class KeyboardSnapshotWriterTest {
+
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    private final KeyboardSnapshotWriter mWriter = new KeyboardSnapshotWriter(mTasks::add);
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("snapshot", ".bin");
+        mFile.deleteOnExit();
+    }
+
+    private static KeyboardSnapshot snapshot(int state) {
+        return new KeyboardSnapshot(state, Collections.<KeyboardSnapshot.Device>emptyList());
+    }
+
+    @Test
+    public void post_burst_coalescesIntoOneWriteOfTheLatest() {
+        mWriter.post(mFile, snapshot(XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED));
+        mWriter.post(mFile, snapshot(XiaomiKeyboardManager.KEYBOARD_STATE_DISCONNECTED));
+        mWriter.post(mFile, snapshot(XiaomiKeyboardManager.KEYBOARD_STATE_UNKNOWN));
+        assertEquals(1, mTasks.size());
+        assertEquals(0, mWriter.getWriteCount());
+
+        mTasks.poll().run();
+        assertEquals(1, mWriter.getWriteCount());
+        assertEquals(XiaomiKeyboardManager.KEYBOARD_STATE_UNKNOWN,
+                KeyboardSnapshot.read(mFile).getState());
+
+        // Once written, the next post schedules a new write
+        mWriter.post(mFile, snapshot(XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED));
+        assertEquals(1, mTasks.size());
+    }
+
+    @Test
+    public void flush_writesNowAndSupersedesThePendingWrite() {
+        mWriter.post(mFile, snapshot(XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED));
+        mWriter.flush(mFile, snapshot(XiaomiKeyboardManager.KEYBOARD_STATE_DISCONNECTED));
+        assertEquals(1, mWriter.getWriteCount());
+        assertEquals(XiaomiKeyboardManager.KEYBOARD_STATE_DISCONNECTED,
+                KeyboardSnapshot.read(mFile).getState());
+
+        mTasks.poll().run();
+        assertEquals(1, mWriter.getWriteCount());
+        assertEquals(XiaomiKeyboardManager.KEYBOARD_STATE_DISCONNECTED,
+                KeyboardSnapshot.read(mFile).getState());
+    }
+}
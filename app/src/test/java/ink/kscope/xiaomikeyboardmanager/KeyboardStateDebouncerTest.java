@@ -0,0 +1,113 @@
+package ink.kscope.xiaomikeyboardmanager;
+
+import ink.kscope.xiaomikeyboardmanager.protocol.KeyboardProtocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class KeyboardStateDebouncerTest {
+
+    private static final int CONNECTED = XiaomiKeyboardManager.KEYBOARD_STATE_CONNECTED;
+    private static final int DISCONNECTED = XiaomiKeyboardManager.KEYBOARD_STATE_DISCONNECTED;
+
+    private final List<Integer> mStates = new ArrayList<>();
+    private Runnable mPending;
+    private long mPendingDelayMs;
+    private KeyboardStateDebouncer mDebouncer;
+
+    @Before
+    public void setUp() {
+        mDebouncer = new KeyboardStateDebouncer(DISCONNECTED, new KeyboardStateDebouncer.Scheduler() {
+            @Override
+            public void postDelayed(Runnable runnable, long delayMs) {
+                assertNull(mPending);
+                mPending = runnable;
+                mPendingDelayMs = delayMs;
+            }
+
+            @Override
+            public void removeCallbacks(Runnable runnable) {
+                if (mPending == runnable) mPending = null;
+            }
+        });
+        mDebouncer.setConnectSettleMs(100);
+        mDebouncer.setDisconnectSettleMs(500);
+        mDebouncer.addListener(mStates::add, null);
+    }
+
+    private void settle() {
+        Runnable pending = mPending;
+        mPending = null;
+        pending.run();
+    }
+
+    @Test
+    public void stableState_isPassedOnAfterItsSettleTime() {
+        mDebouncer.onKeyboardStateChanged(CONNECTED);
+        assertEquals(100, mPendingDelayMs);
+        assertTrue(mStates.isEmpty());
+        settle();
+        assertEquals(Collections.singletonList(CONNECTED), mStates);
+
+        mDebouncer.onKeyboardStateChanged(DISCONNECTED);
+        assertEquals(500, mPendingDelayMs);
+        settle();
+        assertEquals(Arrays.asList(CONNECTED, DISCONNECTED), mStates);
+        assertEquals(0, mDebouncer.getSuppressedCount());
+    }
+
+    @Test
+    public void flapping_isSuppressed() {
+        mDebouncer.onKeyboardStateChanged(CONNECTED);
+        settle();
+        for (int i = 0; i < 5; i++) {
+            mDebouncer.onKeyboardStateChanged(DISCONNECTED);
+            mDebouncer.onKeyboardStateChanged(CONNECTED);
+        }
+        assertNull(mPending);
+        assertEquals(Collections.singletonList(CONNECTED), mStates);
+        assertEquals(5, mDebouncer.getSuppressedCount());
+        assertEquals(CONNECTED, mDebouncer.getRawState());
+    }
+
+    @Test
+    public void repeatedPendingState_doesNotRestartSettleTime() {
+        mDebouncer.onKeyboardStateChanged(CONNECTED);
+        Runnable first = mPending;
+        mDebouncer.onKeyboardStateChanged(CONNECTED);
+        assertSame(first, mPending);
+        settle();
+        assertEquals(Collections.singletonList(CONNECTED), mStates);
+    }
+
+    @Test
+    public void fault_isRememberedUntilConnected() {
+        mDebouncer.onFault(KeyboardProtocol.STATUS_PIN_CONNECT_FAILED);
+        assertEquals(KeyboardProtocol.STATUS_PIN_CONNECT_FAILED, mDebouncer.getFault());
+        mDebouncer.onKeyboardStateChanged(CONNECTED);
+        settle();
+        assertEquals(KeyboardStateDebouncer.FAULT_NONE, mDebouncer.getFault());
+    }
+
+    @Test
+    public void faultFlags_accumulateUntilConnected() {
+        mDebouncer.onFault(KeyboardProtocol.STATUS_OVER_CHARGED);
+        mDebouncer.onFault(KeyboardProtocol.STATUS_TRX_CHECK_FAILED);
+        assertEquals(KeyboardStatus.FAULT_OVER_CHARGED | KeyboardStatus.FAULT_TRX_CHECK_FAILED,
+                mDebouncer.getFaultFlags());
+        KeyboardStatus status = new KeyboardStatus(mDebouncer.getState(),
+                mDebouncer.getFaultFlags(), mDebouncer.getLastTransitionTime());
+        assertEquals(KeyboardStatus.CHARGE_OVER_CHARGED, status.getChargeState());
+
+        mDebouncer.onKeyboardStateChanged(CONNECTED);
+        settle();
+        assertEquals(0, mDebouncer.getFaultFlags());
+    }
+}
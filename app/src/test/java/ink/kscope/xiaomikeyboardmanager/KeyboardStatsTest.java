@@ -0,0 +1,33 @@
+package ink.kscope.xiaomikeyboardmanager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeyboardStatsTest {
+
+    @Test
+    public void completion_endsTheEpisode() {
+        KeyboardStats stats = new KeyboardStats();
+        stats.onFileEvent();
+        stats.onDequeue(true);
+        stats.onStateDecision();
+        stats.onListenerComplete();
+        assertEquals(1, stats.getEventToListener().getCount());
+
+        // A later completion with no new event isn't measured against the old one
+        stats.onStateDecision();
+        stats.onListenerComplete();
+        assertEquals(1, stats.getEventToListener().getCount());
+    }
+
+    @Test
+    public void streamedReport_startsAnEpisode() {
+        KeyboardStats stats = new KeyboardStats();
+        stats.onReportReceived();
+        stats.onDequeue(true);
+        stats.onStateDecision();
+        stats.onListenerComplete();
+        assertEquals(1, stats.getEventToListener().getCount());
+    }
+}
@@ -0,0 +1,64 @@
+package ink.kscope.xiaomikeyboardmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class KeyboardTraceTest {
+
+    @Before
+    public void setUp() {
+        KeyboardTrace.clear();
+        KeyboardTrace.setLogcatLevel(KeyboardTrace.LEVEL_OFF);
+    }
+
+    @After
+    public void tearDown() {
+        KeyboardTrace.setLevel(KeyboardTrace.LEVEL_INFO);
+        KeyboardTrace.setLogcatLevel(KeyboardTrace.LEVEL_ERROR);
+        KeyboardTrace.clear();
+    }
+
+    private static String dump() {
+        StringWriter out = new StringWriter();
+        KeyboardTrace.dump(new PrintWriter(out), "");
+        return out.toString();
+    }
+
+    @Test
+    public void eventsAboveLevel_areNotRecorded() {
+        KeyboardTrace.setLevel(KeyboardTrace.LEVEL_ERROR);
+        KeyboardTrace.info(KeyboardTrace.EVENT_SEND_FAILED, 1);
+        assertEquals(0, KeyboardTrace.getEventCount());
+        assertFalse(KeyboardTrace.isEnabled(KeyboardTrace.LEVEL_INFO));
+
+        KeyboardTrace.error(KeyboardTrace.EVENT_QUERY_GAVE_UP, 3);
+        assertEquals(1, KeyboardTrace.getEventCount());
+    }
+
+    @Test
+    public void dump_formatsRecordedEvents() {
+        KeyboardTrace.info(KeyboardTrace.EVENT_NOT_CONNECT_STATE, 0xa1);
+        KeyboardTrace.error(KeyboardTrace.EVENT_QUERY_GAVE_UP, 3);
+        String dump = dump();
+        assertTrue(dump, dump.contains("receive connect state error:a1"));
+        assertTrue(dump, dump.contains("connect state query gave up, attempts 3"));
+    }
+
+    @Test
+    public void ring_keepsTheNewestEvents() {
+        for (int i = 0; i < 300; i++) {
+            KeyboardTrace.info(KeyboardTrace.EVENT_QUERY_GAVE_UP, i);
+        }
+        assertEquals(300, KeyboardTrace.getEventCount());
+        String dump = dump();
+        assertFalse(dump, dump.contains("attempts 43\n"));
+        assertTrue(dump, dump.contains("attempts 44\n"));
+        assertTrue(dump, dump.contains("attempts 299\n"));
+    }
+}
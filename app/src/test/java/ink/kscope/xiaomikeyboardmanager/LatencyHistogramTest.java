@@ -0,0 +1,36 @@
+package ink.kscope.xiaomikeyboardmanager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketUpperBound_containsValue() {
+        for (long value = 0; value < 100000; value += 7) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(value <= LatencyHistogram.bucketUpperBound(index));
+            if (index > 0) {
+                assertTrue(value > LatencyHistogram.bucketUpperBound(index - 1));
+            }
+        }
+    }
+
+    @Test
+    public void getPercentile_withinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        long p50 = histogram.getPercentile(50);
+        assertTrue("p50=" + p50, p50 >= 500 && p50 <= 625);
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void getPercentile_empty() {
+        assertEquals(0, new LatencyHistogram("test").getPercentile(99));
+    }
+}
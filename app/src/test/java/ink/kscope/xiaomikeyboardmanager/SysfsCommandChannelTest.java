@@ -0,0 +1,70 @@
+package ink.kscope.xiaomikeyboardmanager;
+
+import ink.kscope.xiaomikeyboardmanager.protocol.KeyboardCommand;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SysfsCommandChannelTest {
+
+    private File mFile;
+    private SysfsCommandChannel mChannel;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("conn_status", null);
+        mFile.deleteOnExit();
+        mChannel = new SysfsCommandChannel(mFile, null);
+    }
+
+    @After
+    public void tearDown() {
+        mChannel.close();
+    }
+
+    private String contents() throws Exception {
+        return new String(Files.readAllBytes(mFile.toPath()), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void send_writesCommand() throws Exception {
+        assertTrue(mChannel.send(KeyboardCommand.RESET_HOST).get(1, TimeUnit.SECONDS));
+        assertEquals("host_reset", contents());
+        assertEquals(1, mChannel.getWriteCount());
+    }
+
+    @Test
+    public void send_identicalWithinWindow_isMerged() throws Exception {
+        CompletableFuture<Boolean> first = mChannel.send(KeyboardCommand.RESET_KEYBOARD);
+        CompletableFuture<Boolean> second = mChannel.send(KeyboardCommand.RESET_KEYBOARD);
+        assertSame(first, second);
+        assertTrue(first.get(1, TimeUnit.SECONDS));
+        assertSame(first, mChannel.send(KeyboardCommand.RESET_KEYBOARD));
+        assertEquals(1, mChannel.getWriteCount());
+        assertEquals(2, mChannel.getMergedCount());
+    }
+
+    @Test
+    public void send_outsideWindow_writesAgain() throws Exception {
+        mChannel.setCoalesceWindowMs(0);
+        assertTrue(mChannel.send(KeyboardCommand.RESET_KEYBOARD).get(1, TimeUnit.SECONDS));
+        assertTrue(mChannel.send(KeyboardCommand.RESET_KEYBOARD).get(1, TimeUnit.SECONDS));
+        assertEquals(2, mChannel.getWriteCount());
+    }
+
+    @Test
+    public void send_missingFile_fails() throws Exception {
+        assertTrue(mFile.delete());
+        assertFalse(mChannel.send(KeyboardCommand.RESET_HOST).get(1, TimeUnit.SECONDS));
+        assertEquals(1, mChannel.getFailureCount());
+    }
+}
@@ -0,0 +1,31 @@
+package ink.kscope.xiaomikeyboardmanager;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class SysfsConnStatusMonitorTest {
+
+    private static int parse(String value) {
+        byte[] buf = value.getBytes(StandardCharsets.US_ASCII);
+        return SysfsConnStatusMonitor.parseStatus(buf, buf.length);
+    }
+
+    @Test
+    public void parseStatus() {
+        assertEquals(SysfsConnStatusMonitor.STATUS_CONNECTED, parse("1\n"));
+        assertEquals(SysfsConnStatusMonitor.STATUS_DISCONNECTED, parse("0"));
+        assertEquals(SysfsConnStatusMonitor.STATUS_CONNECTED, parse(" 1 \n\0"));
+    }
+
+    @Test
+    public void parseStatus_ambiguous() {
+        assertEquals(SysfsConnStatusMonitor.STATUS_AMBIGUOUS, parse(""));
+        assertEquals(SysfsConnStatusMonitor.STATUS_AMBIGUOUS, parse("2\n"));
+        assertEquals(SysfsConnStatusMonitor.STATUS_AMBIGUOUS, parse("10\n"));
+        assertEquals(SysfsConnStatusMonitor.STATUS_AMBIGUOUS, parse("1 0\n"));
+        assertEquals(SysfsConnStatusMonitor.STATUS_AMBIGUOUS, parse("enable_keyboard"));
+    }
+}
@@ -0,0 +1,62 @@
+package ink.kscope.xiaomikeyboardmanager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class UsbActivityGateTest {
+
+    private final List<String> mEvents = new ArrayList<>();
+    private UsbActivityGate mGate;
+
+    @Before
+    public void setUp() {
+        mGate = new UsbActivityGate(new UsbActivityGate.Listener() {
+            @Override
+            public void onParked() {
+                mEvents.add("parked");
+            }
+
+            @Override
+            public void onResumed(boolean checkPending) {
+                mEvents.add("resumed " + checkPending);
+            }
+        });
+    }
+
+    @Test
+    public void open_allowsEverything() {
+        assertTrue(mGate.allowQuery());
+        assertTrue(mGate.allowScan());
+        assertTrue(mEvents.isEmpty());
+    }
+
+    @Test
+    public void parked_batchesDeferredWorkIntoOneCheck() {
+        mGate.setInteractive(false);
+        assertFalse(mGate.allowScan());
+        assertFalse(mGate.allowScan());
+        assertFalse(mGate.allowQuery());
+        mGate.setInteractive(true);
+
+        assertEquals(Arrays.asList("parked", "resumed true"), mEvents);
+        assertEquals(2, mGate.getAvoidedWakeupCount());
+        assertEquals(2, mGate.getAvoidedTransferCount());
+        assertTrue(mGate.allowQuery());
+    }
+
+    @Test
+    public void resumeWithoutDeferredWork_doesNotCheck() {
+        mGate.setDeviceIdle(true);
+        mGate.setInteractive(false);
+        mGate.setDeviceIdle(false);
+        assertTrue(mGate.isParked());
+        mGate.setInteractive(true);
+        assertEquals(Arrays.asList("parked", "resumed false"), mEvents);
+    }
+}
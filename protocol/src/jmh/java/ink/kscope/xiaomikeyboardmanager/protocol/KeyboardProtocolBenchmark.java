@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Run with {@code ./gradlew :protocol:jmh}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KeyboardProtocolBenchmark {
+
+    private final byte[] mSendBuf = new byte[KeyboardProtocol.FRAME_SIZE];
+    private final byte[] mConnectedFrame = new byte[KeyboardProtocol.FRAME_SIZE];
+    private final byte[] mDisconnectedFrame = new byte[KeyboardProtocol.FRAME_SIZE];
+
+    private KeyboardStateDispatcher mDispatcher;
+    private FrameDecoder mDecoder;
+    private boolean mConnected;
+
+    @Setup
+    public void setUp() {
+        mConnectedFrame[KeyboardProtocol.OFFSET_CONNECT_STATE] = 35;
+        mDisconnectedFrame[KeyboardProtocol.OFFSET_CONNECT_STATE] = 0;
+        int checksumOffset = KeyboardProtocol.frameLength(
+                KeyboardProtocol.CONNECT_STATE_PAYLOAD_SIZE) - 1;
+        for (byte[] frame : new byte[][]{mConnectedFrame, mDisconnectedFrame}) {
+            frame[0] = KeyboardProtocol.REPORT_ID;
+            frame[KeyboardProtocol.OFFSET_ADDRESS] = KeyboardProtocol.ADDRESS_KEYBOARD;
+            frame[KeyboardProtocol.OFFSET_COMMAND] = KeyboardProtocol.RESPONSE_CONNECT_STATE;
+            frame[KeyboardProtocol.OFFSET_LENGTH] = KeyboardProtocol.CONNECT_STATE_PAYLOAD_SIZE;
+            frame[checksumOffset] = KeyboardProtocol.checksum(frame, 0, checksumOffset);
+        }
+
+        mDispatcher = new KeyboardStateDispatcher(KeyboardProtocol.STATUS_DISCONNECTED);
+        mDispatcher.addListener(state -> { });
+        mDecoder = new FrameDecoder(new FrameDecoder.Listener() {
+            @Override
+            public void onConnectState(int status, byte[] frame, int offset) {
+                mDispatcher.setState(status);
+            }
+
+            @Override
+            public void onFrame(byte command, byte[] frame, int offset, int length) {
+            }
+        });
+    }
+
+    @Benchmark
+    public int encodeCommand() {
+        return KeyboardCommand.GET_CONNECT_STATE.writeTo(mSendBuf);
+    }
+
+    @Benchmark
+    public byte checksumFrame() {
+        return KeyboardProtocol.checksum(mConnectedFrame, 0, KeyboardProtocol.FRAME_SIZE);
+    }
+
+    @Benchmark
+    public int decodeConnectState() {
+        return KeyboardProtocol.decodeConnectState(mConnectedFrame);
+    }
+
+    /**
+     * Decode a report and push the result through the dispatcher, alternating between
+     * connected and disconnected so every call is a real transition.
+     */
+    @Benchmark
+    public boolean stateTransition() {
+        mConnected = !mConnected;
+        byte[] frame = mConnected ? mConnectedFrame : mDisconnectedFrame;
+        if (!KeyboardProtocol.isConnectStateReport(frame)) return false;
+        return mDispatcher.setState(KeyboardProtocol.decodeConnectState(frame));
+    }
+
+    /**
+     * Same as {@link #stateTransition()}, but through the streaming decoder, which also
+     * verifies the checksum.
+     */
+    @Benchmark
+    public int decodeReportStream() {
+        mConnected = !mConnected;
+        mDecoder.feed(mConnected ? mConnectedFrame : mDisconnectedFrame, 0,
+                KeyboardProtocol.FRAME_SIZE);
+        return mDispatcher.getState();
+    }
+}
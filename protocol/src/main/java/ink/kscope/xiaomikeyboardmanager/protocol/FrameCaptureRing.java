@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager.protocol;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records raw keyboard frames into a fixed-size ring file through a memory-mapped buffer.
+ * Each slot holds a {@link System#nanoTime()} timestamp, the direction and up to
+ * {@link #FRAME_SIZE} bytes of the frame. Recording copies into the mapping and never
+ * allocates; the kernel writes the pages back on its own.
+ *
+ * <p>File layout, all big-endian: a {@value #HEADER_SIZE} byte header of magic, version,
+ * slot count, slot size, wall clock millis and nanoTime at creation, and the total number
+ * of frames written; then the slots, each a long timestamp, a byte direction, a byte
+ * reserved, a short length and the frame bytes.
+ */
+public class FrameCaptureRing implements Closeable {
+
+    public static final int MAGIC = 0x584b4350; // "XKCP"
+    public static final int VERSION = 1;
+
+    public static final int DIRECTION_OUT = 0;
+    public static final int DIRECTION_IN = 1;
+    public static final int DIRECTION_REPORT = 2;
+
+    public static final int FRAME_SIZE = KeyboardProtocol.FRAME_SIZE;
+    public static final int HEADER_SIZE = 64;
+    public static final int SLOT_HEADER_SIZE = 12;
+    public static final int SLOT_SIZE = SLOT_HEADER_SIZE + FRAME_SIZE;
+    public static final int DEFAULT_SLOT_COUNT = 4096;
+
+    static final int OFFSET_MAGIC = 0;
+    static final int OFFSET_VERSION = 4;
+    static final int OFFSET_SLOT_COUNT = 8;
+    static final int OFFSET_SLOT_SIZE = 12;
+    static final int OFFSET_WALL_TIME = 16;
+    static final int OFFSET_NANO_TIME = 24;
+    static final int OFFSET_WRITTEN = 32;
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mSlotCount;
+    private long mWritten;
+
+    public FrameCaptureRing(File file, int slotCount) throws IOException {
+        mSlotCount = slotCount;
+        mFile = new RandomAccessFile(file, "rw");
+        long size = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+        mFile.setLength(size);
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+        mBuffer.putInt(OFFSET_VERSION, VERSION);
+        mBuffer.putInt(OFFSET_SLOT_COUNT, slotCount);
+        mBuffer.putInt(OFFSET_SLOT_SIZE, SLOT_SIZE);
+        mBuffer.putLong(OFFSET_WALL_TIME, System.currentTimeMillis());
+        mBuffer.putLong(OFFSET_NANO_TIME, System.nanoTime());
+        mBuffer.putLong(OFFSET_WRITTEN, 0);
+    }
+
+    public synchronized void record(int direction, byte[] data, int length) {
+        int count = Math.min(length, FRAME_SIZE);
+        int offset = HEADER_SIZE + (int) (mWritten % mSlotCount) * SLOT_SIZE;
+        mBuffer.putLong(offset, System.nanoTime());
+        mBuffer.put(offset + 8, (byte) direction);
+        mBuffer.putShort(offset + 10, (short) count);
+        mBuffer.position(offset + SLOT_HEADER_SIZE);
+        mBuffer.put(data, 0, count);
+        mWritten++;
+        mBuffer.putLong(OFFSET_WRITTEN, mWritten);
+    }
+
+    public synchronized long getWrittenCount() {
+        return mWritten;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mBuffer.force();
+        mFile.close();
+    }
+}
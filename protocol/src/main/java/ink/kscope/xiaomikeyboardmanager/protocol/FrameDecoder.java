@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager.protocol;
+
+/**
+ * Incremental decoder for the report stream. Bytes can be fed in arbitrary chunks:
+ * several frames in one transfer and frames split across transfers are both handled.
+ * Anything that isn't a frame header is skipped until the next one. Decoding never
+ * allocates.
+ *
+ * <p>Whether reports carry the length byte and checksum of command frames hasn't been
+ * confirmed on real keyboards yet. Until {@link #setStrict} turns checking on, a frame
+ * whose length or checksum doesn't match is still passed on, read at the fixed offsets
+ * of a whole transfer as before; the mismatches are only counted.
+ *
+ * <p>Not thread safe; feed it from one thread.
+ */
+public class FrameDecoder {
+
+    // An unchecked frame is read at fixed offsets, so it must reach the charge state byte
+    private static final int MIN_UNCHECKED_LENGTH = KeyboardProtocol.OFFSET_CHARGE_STATE + 1;
+
+    private final Listener mListener;
+    // Whatever is left after decoding is shorter than a frame, so this always has room
+    // for a full frame more
+    private final byte[] mBuffer = new byte[KeyboardProtocol.FRAME_SIZE * 2];
+    private int mFill;
+
+    private volatile long mFrameCount;
+    private volatile long mChecksumErrorCount;
+    private volatile long mLengthErrorCount;
+    private volatile long mUncheckedFrameCount;
+    private volatile long mSkippedByteCount;
+    private volatile boolean mStrict;
+
+    public FrameDecoder(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Drops frames whose length or checksum doesn't match instead of passing them on.
+     * Only turn on once captured reports confirm the layout.
+     */
+    public void setStrict(boolean strict) {
+        mStrict = strict;
+    }
+
+    public void feed(byte[] data, int offset, int length) {
+        while (length > 0) {
+            int count = Math.min(length, mBuffer.length - mFill);
+            System.arraycopy(data, offset, mBuffer, mFill, count);
+            mFill += count;
+            offset += count;
+            length -= count;
+            decode();
+        }
+    }
+
+    /**
+     * Drops a partially received frame, e.g. when the stream restarts.
+     */
+    public void reset() {
+        mFill = 0;
+    }
+
+    private void decode() {
+        final byte[] buf = mBuffer;
+        int pos = 0;
+        while (pos < mFill) {
+            if (buf[pos] != KeyboardProtocol.REPORT_ID) {
+                // Zeros are transfer padding, not garbage
+                if (buf[pos] != 0) mSkippedByteCount++;
+                pos++;
+                continue;
+            }
+            if (mFill - pos < KeyboardProtocol.HEADER_SIZE) break;
+            if (buf[pos + KeyboardProtocol.OFFSET_ADDRESS] != KeyboardProtocol.ADDRESS_KEYBOARD) {
+                mSkippedByteCount++;
+                pos++;
+                continue;
+            }
+            boolean strict = mStrict;
+            int payloadLength = buf[pos + KeyboardProtocol.OFFSET_LENGTH] & 0xff;
+            boolean lengthValid = payloadLength <= KeyboardProtocol.MAX_PAYLOAD_SIZE;
+            boolean checksumValid = false;
+            if (lengthValid) {
+                int frameLength = KeyboardProtocol.frameLength(payloadLength);
+                if (mFill - pos < frameLength) break;
+                checksumValid = KeyboardProtocol.checksum(buf, pos, frameLength - 1)
+                        == buf[pos + frameLength - 1];
+                boolean hasConnectState =
+                        payloadLength >= KeyboardProtocol.CONNECT_STATE_PAYLOAD_SIZE;
+                boolean shortConnectState = !hasConnectState
+                        && buf[pos + KeyboardProtocol.OFFSET_COMMAND]
+                                == KeyboardProtocol.RESPONSE_CONNECT_STATE;
+                // Unless checking, a connect state too short to decode is read unchecked
+                if (checksumValid && (strict || !shortConnectState)) {
+                    mFrameCount++;
+                    dispatch(buf, pos, frameLength, hasConnectState);
+                    pos += frameLength;
+                    continue;
+                }
+            }
+            if (!strict && mFill - pos < MIN_UNCHECKED_LENGTH) break;
+            if (!lengthValid || checksumValid) {
+                mLengthErrorCount++;
+            } else {
+                mChecksumErrorCount++;
+            }
+            if (strict) {
+                pos++;
+                continue;
+            }
+            int frameLength = uncheckedFrameLength(buf, pos);
+            mUncheckedFrameCount++;
+            dispatch(buf, pos, frameLength, true);
+            pos += frameLength;
+        }
+        mFill -= pos;
+        System.arraycopy(buf, pos, buf, 0, mFill);
+    }
+
+    /**
+     * An unchecked frame runs to the end of the transfer, or to the next header.
+     */
+    private int uncheckedFrameLength(byte[] buf, int pos) {
+        int end = Math.min(mFill, pos + KeyboardProtocol.FRAME_SIZE);
+        for (int i = pos + MIN_UNCHECKED_LENGTH; i + KeyboardProtocol.OFFSET_ADDRESS < end; i++) {
+            if (buf[i] == KeyboardProtocol.REPORT_ID
+                    && buf[i + KeyboardProtocol.OFFSET_ADDRESS] == KeyboardProtocol.ADDRESS_KEYBOARD) {
+                return i - pos;
+            }
+        }
+        return end - pos;
+    }
+
+    private void dispatch(byte[] buf, int pos, int frameLength, boolean hasConnectState) {
+        byte command = buf[pos + KeyboardProtocol.OFFSET_COMMAND];
+        if (command == KeyboardProtocol.RESPONSE_CONNECT_STATE && hasConnectState) {
+            mListener.onConnectState(KeyboardProtocol.decodeConnectState(buf, pos), buf, pos);
+        } else {
+            mListener.onFrame(command, buf, pos, frameLength);
+        }
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getChecksumErrorCount() {
+        return mChecksumErrorCount;
+    }
+
+    /**
+     * Frames whose length byte is out of range or too short for their command.
+     */
+    public long getLengthErrorCount() {
+        return mLengthErrorCount;
+    }
+
+    /**
+     * Frames passed on despite a length or checksum mismatch, because checking is off.
+     */
+    public long getUncheckedFrameCount() {
+        return mUncheckedFrameCount;
+    }
+
+    /**
+     * Bytes discarded while looking for a frame header, padding excluded.
+     */
+    public long getSkippedByteCount() {
+        return mSkippedByteCount;
+    }
+
+    /**
+     * Called on the feeding thread. {@code frame} is the decoder's buffer and is only
+     * valid until the callback returns.
+     */
+    public interface Listener {
+        /**
+         * A connect state report, decoded into one of the {@code KeyboardProtocol.STATUS_}
+         * constants.
+         */
+        void onConnectState(int status, byte[] frame, int offset);
+
+        /**
+         * Any other valid frame.
+         */
+        void onFrame(byte command, byte[] frame, int offset, int length);
+    }
+}
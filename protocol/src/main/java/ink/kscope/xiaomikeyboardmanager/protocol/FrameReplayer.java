@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager.protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Feeds frames recorded by {@link FrameCaptureRing} back in recording order, either
+ * flat out or paced by the recorded timestamps.
+ */
+public class FrameReplayer {
+
+    private final MappedByteBuffer mBuffer;
+    private final int mSlotCount;
+    private final long mWritten;
+
+    public FrameReplayer(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        if (mBuffer.getInt(FrameCaptureRing.OFFSET_MAGIC) != FrameCaptureRing.MAGIC
+                || mBuffer.getInt(FrameCaptureRing.OFFSET_VERSION) != FrameCaptureRing.VERSION
+                || mBuffer.getInt(FrameCaptureRing.OFFSET_SLOT_SIZE) != FrameCaptureRing.SLOT_SIZE) {
+            throw new IOException("not a keyboard capture file: " + file);
+        }
+        mSlotCount = mBuffer.getInt(FrameCaptureRing.OFFSET_SLOT_COUNT);
+        mWritten = mBuffer.getLong(FrameCaptureRing.OFFSET_WRITTEN);
+    }
+
+    /**
+     * Number of frames still held by the ring.
+     */
+    public int getFrameCount() {
+        return (int) Math.min(mWritten, mSlotCount);
+    }
+
+    /**
+     * Replays every frame into {@code sink}. With {@code realtime} the gaps between frames
+     * are slept through as recorded, otherwise frames are delivered back to back.
+     * The array passed to the sink is reused between frames.
+     */
+    public void replay(FrameSink sink, boolean realtime) throws InterruptedException {
+        byte[] frame = new byte[FrameCaptureRing.FRAME_SIZE];
+        long first = mWritten - getFrameCount();
+        long startNanos = System.nanoTime();
+        long firstTimestamp = 0;
+        for (long i = first; i < mWritten; i++) {
+            int offset = FrameCaptureRing.HEADER_SIZE + (int) (i % mSlotCount) * FrameCaptureRing.SLOT_SIZE;
+            long timestamp = mBuffer.getLong(offset);
+            int direction = mBuffer.get(offset + 8);
+            int length = mBuffer.getShort(offset + 10);
+            for (int j = 0; j < FrameCaptureRing.FRAME_SIZE; j++) {
+                frame[j] = j < length ? mBuffer.get(offset + FrameCaptureRing.SLOT_HEADER_SIZE + j) : 0;
+            }
+            if (i == first) {
+                firstTimestamp = timestamp;
+            } else if (realtime) {
+                long waitNanos = (timestamp - firstTimestamp) - (System.nanoTime() - startNanos);
+                if (waitNanos > 0) {
+                    Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                }
+            }
+            sink.onFrame(direction, frame, length, timestamp);
+        }
+    }
+
+    /**
+     * Replays a capture file through the protocol decoder and prints every connect state
+     * change: {@code FrameReplayer <capture file> [--realtime]}.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: FrameReplayer <capture file> [--realtime]");
+            System.exit(2);
+        }
+        boolean realtime = args.length > 1 && "--realtime".equals(args[1]);
+        FrameReplayer replayer = new FrameReplayer(new File(args[0]));
+        int[] lastStatus = {-1};
+        long[] firstTimestamp = {-1};
+        long start = System.nanoTime();
+        replayer.replay((direction, frame, length, timestampNanos) -> {
+            if (firstTimestamp[0] < 0) firstTimestamp[0] = timestampNanos;
+            int status;
+            if (direction == FrameCaptureRing.DIRECTION_IN) {
+                status = KeyboardProtocol.decodeConnectState(frame);
+            } else if (direction == FrameCaptureRing.DIRECTION_REPORT
+                    && KeyboardProtocol.isConnectStateReport(frame)) {
+                status = KeyboardProtocol.decodeConnectState(frame);
+            } else {
+                return;
+            }
+            if (status != lastStatus[0]) {
+                lastStatus[0] = status;
+                System.out.printf("%10.3f ms %s status=%d%n",
+                        (timestampNanos - firstTimestamp[0]) / 1e6,
+                        direction == FrameCaptureRing.DIRECTION_IN ? "in    " : "report", status);
+            }
+        }, realtime);
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%d frames in %.3f ms%n", replayer.getFrameCount(), elapsed / 1e6);
+    }
+
+    public interface FrameSink {
+        void onFrame(int direction, byte[] frame, int length, long timestampNanos);
+    }
+}
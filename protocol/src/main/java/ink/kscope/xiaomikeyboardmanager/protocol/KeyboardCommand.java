@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager.protocol;
+
+/**
+ * Every command we know how to send to the keyboard, encoded once.
+ * USB commands are stored as complete 64 byte frames with the checksum already
+ * appended; sysfs commands are stored as the raw bytes written to the conn_status node.
+ */
+public enum KeyboardCommand {
+    GET_CONNECT_STATE(new byte[]{78, 49, Byte.MIN_VALUE, 56,
+            KeyboardProtocol.COMMAND_GET_CONNECT_STATE, 1, 1},
+            // Whether the response echoes the sub-command hasn't been confirmed
+            KeyboardProtocol.RESPONSE_CONNECT_STATE, KeyboardProtocol.SUB_COMMAND_ANY),
+    ENABLE_KEYBOARD("enable_keyboard"),
+    RESET_KEYBOARD("reset"),
+    RESET_HOST("host_reset");
+
+    public static final int FRAME_SIZE = KeyboardProtocol.FRAME_SIZE;
+
+    private final byte[] mBytes;
+    private final boolean mUsb;
+    private final byte mResponseCommand;
+    private final int mResponseSubCommand;
+
+    KeyboardCommand(byte[] payload, byte responseCommand, int responseSubCommand) {
+        mBytes = new byte[FRAME_SIZE];
+        System.arraycopy(payload, 0, mBytes, 0, payload.length);
+        mBytes[payload.length] = KeyboardProtocol.checksum(payload, 0, payload.length);
+        mUsb = true;
+        mResponseCommand = responseCommand;
+        mResponseSubCommand = responseSubCommand;
+    }
+
+    KeyboardCommand(String sysfsCommand) {
+        mBytes = sysfsCommand.getBytes();
+        mUsb = false;
+        mResponseCommand = 0;
+        mResponseSubCommand = KeyboardProtocol.SUB_COMMAND_ANY;
+    }
+
+    public boolean isUsbCommand() {
+        return mUsb;
+    }
+
+    /**
+     * The command byte of the frame that answers this USB command.
+     */
+    public byte getResponseCommand() {
+        return mResponseCommand;
+    }
+
+    /**
+     * The sub-command byte of the answering frame, or
+     * {@link KeyboardProtocol#SUB_COMMAND_ANY}.
+     */
+    public int getResponseSubCommand() {
+        return mResponseSubCommand;
+    }
+
+    /**
+     * Copies the encoded command into {@code buf} and returns the number of bytes written.
+     * For USB commands this overwrites the whole frame, so the buffer needs no clearing.
+     */
+    public int writeTo(byte[] buf) {
+        System.arraycopy(mBytes, 0, buf, 0, mBytes.length);
+        return mBytes.length;
+    }
+
+    /**
+     * Returns the shared encoded bytes. Callers must not modify them.
+     */
+    public byte[] getBytes() {
+        return mBytes;
+    }
+}
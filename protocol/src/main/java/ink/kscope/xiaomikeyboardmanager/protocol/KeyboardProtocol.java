@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager.protocol;
+
+/**
+ * Wire format of the keyboard's vendor and report interfaces. Pure Java, so it can be
+ * benchmarked and tested on any JVM.
+ *
+ * <p>A frame is a six byte header, {@code header[OFFSET_LENGTH]} bytes of payload and a
+ * checksum byte, the {@link #checksum} of everything before it. USB transfers carry one
+ * frame padded to {@link #FRAME_SIZE} with zeros. The length and checksum are only known
+ * to hold for command frames; see {@link FrameDecoder}.
+ */
+public final class KeyboardProtocol {
+
+    public static final int FRAME_SIZE = 64;
+
+    public static final int HEADER_SIZE = 6;
+    public static final int MAX_PAYLOAD_SIZE = FRAME_SIZE - HEADER_SIZE - 1;
+
+    public static final int OFFSET_ADDRESS = 2;
+    public static final int OFFSET_COMMAND = 4;
+    public static final int OFFSET_LENGTH = 5;
+    // First payload byte; selects the operation within a command
+    public static final int OFFSET_SUB_COMMAND = HEADER_SIZE;
+    public static final int OFFSET_CONNECT_STATE = 9;
+    public static final int OFFSET_CHARGE_STATE = 18;
+    // Smallest connect state payload that still reaches the charge state byte
+    public static final int CONNECT_STATE_PAYLOAD_SIZE = OFFSET_CHARGE_STATE - HEADER_SIZE + 1;
+
+    public static final byte REPORT_ID = 38;
+    public static final byte ADDRESS_KEYBOARD = 56;
+
+    public static final byte COMMAND_GET_CONNECT_STATE = -95;
+    public static final byte RESPONSE_CONNECT_STATE = -94;
+    // A response whose sub-command byte isn't known, so any value matches
+    public static final int SUB_COMMAND_ANY = -1;
+
+    public static final int STATUS_DISCONNECTED = 0;
+    public static final int STATUS_CONNECTED = 1;
+    public static final int STATUS_OVER_CHARGED = 2;
+    public static final int STATUS_TRX_CHECK_FAILED = 3;
+    public static final int STATUS_PIN_CONNECT_FAILED = 4;
+    public static final int STATUS_UNHANDLED = 5;
+    // The frame isn't a connect state response at all
+    public static final int STATUS_NOT_CONNECT_STATE = 6;
+
+    private KeyboardProtocol() {
+    }
+
+    public static byte checksum(byte[] data, int start, int length) {
+        byte sum = 0;
+        for (int i = start; i < start + length; i++) {
+            sum = (byte) (data[i] + sum);
+        }
+        return sum;
+    }
+
+    /**
+     * Total length of a frame with the given payload, checksum included.
+     */
+    public static int frameLength(int payloadLength) {
+        return HEADER_SIZE + payloadLength + 1;
+    }
+
+    /**
+     * Whether a frame read from the report interface carries a connect state.
+     */
+    public static boolean isConnectStateReport(byte[] frame) {
+        return frame[0] == REPORT_ID && frame[OFFSET_ADDRESS] == ADDRESS_KEYBOARD
+                && frame[OFFSET_COMMAND] == RESPONSE_CONNECT_STATE;
+    }
+
+    public static int decodeConnectState(byte[] frame) {
+        return decodeConnectState(frame, 0);
+    }
+
+    /**
+     * Decodes a connect state response starting at {@code offset} into one of the
+     * {@code STATUS_} constants. Only {@link #STATUS_CONNECTED} and
+     * {@link #STATUS_DISCONNECTED} are final answers.
+     */
+    public static int decodeConnectState(byte[] frame, int offset) {
+        if (frame[offset + OFFSET_COMMAND] != RESPONSE_CONNECT_STATE) {
+            return STATUS_NOT_CONNECT_STATE;
+        }
+        int state = frame[offset + OFFSET_CONNECT_STATE];
+        if (frame[offset + OFFSET_CHARGE_STATE] == 1) {
+            return STATUS_OVER_CHARGED;
+        } else if ((state & 3) == 1) {
+            return STATUS_TRX_CHECK_FAILED;
+        } else if ((state & 99) == 67) {
+            return STATUS_PIN_CONNECT_FAILED;
+        } else if ((state & 3) == 0) {
+            return STATUS_DISCONNECTED;
+        } else if ((state & 99) == 35) {
+            return STATUS_CONNECTED;
+        }
+        return STATUS_UNHANDLED;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2022 Project Kaleidoscope
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package ink.kscope.xiaomikeyboardmanager.protocol;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the keyboard state and delivers changes to listeners. The listener array is
+ * copy-on-write, so dispatch never takes a lock. A listener registered with an executor
+ * is called there; if it falls behind, pending changes collapse into the latest state.
+ */
+public class KeyboardStateDispatcher {
+
+    private static final int STATE_NONE = Integer.MIN_VALUE;
+
+    private final AtomicInteger mState;
+    private final Runnable mListenerCompleteCallback;
+    private final Object mRegistrationLock = new Object();
+    private volatile Registration[] mRegistrations = new Registration[0];
+
+    public KeyboardStateDispatcher(int initialState) {
+        this(initialState, null);
+    }
+
+    /**
+     * {@code listenerCompleteCallback} runs after each listener returns, on the listener's thread.
+     */
+    public KeyboardStateDispatcher(int initialState, Runnable listenerCompleteCallback) {
+        mState = new AtomicInteger(initialState);
+        mListenerCompleteCallback = listenerCompleteCallback;
+    }
+
+    public int getState() {
+        return mState.get();
+    }
+
+    /**
+     * Updates the state and notifies listeners if it changed. Returns whether it changed.
+     */
+    public boolean setState(int state) {
+        if (mState.getAndSet(state) == state) return false;
+        for (Registration registration : mRegistrations) {
+            registration.dispatch(state);
+        }
+        return true;
+    }
+
+    /**
+     * Adds a listener that is called on the thread that changes the state.
+     */
+    public void addListener(KeyboardStateListener listener) {
+        addListener(listener, null);
+    }
+
+    public void addListener(KeyboardStateListener listener, Executor executor) {
+        synchronized (mRegistrationLock) {
+            Registration[] old = mRegistrations;
+            Registration[] registrations = new Registration[old.length + 1];
+            System.arraycopy(old, 0, registrations, 0, old.length);
+            registrations[old.length] = new Registration(listener, executor,
+                    mListenerCompleteCallback);
+            mRegistrations = registrations;
+        }
+    }
+
+    public void removeListener(KeyboardStateListener listener) {
+        synchronized (mRegistrationLock) {
+            Registration[] old = mRegistrations;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i].mListener == listener) {
+                    Registration[] registrations = new Registration[old.length - 1];
+                    System.arraycopy(old, 0, registrations, 0, i);
+                    System.arraycopy(old, i + 1, registrations, i, old.length - i - 1);
+                    mRegistrations = registrations;
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class Registration {
+        final KeyboardStateListener mListener;
+        final Executor mExecutor;
+        final Runnable mCompleteCallback;
+        final AtomicInteger mLatestState = new AtomicInteger(STATE_NONE);
+        final AtomicBoolean mScheduled = new AtomicBoolean(false);
+        final Runnable mDrainRunnable = this::drain;
+        int mDeliveredState = STATE_NONE;
+
+        Registration(KeyboardStateListener listener, Executor executor,
+                Runnable completeCallback) {
+            mListener = listener;
+            mExecutor = executor;
+            mCompleteCallback = completeCallback;
+        }
+
+        void dispatch(int state) {
+            if (mExecutor == null) {
+                deliver(state);
+                return;
+            }
+            mLatestState.set(state);
+            if (mScheduled.compareAndSet(false, true)) {
+                mExecutor.execute(mDrainRunnable);
+            }
+        }
+
+        synchronized void drain() {
+            mScheduled.set(false);
+            int state = mLatestState.get();
+            if (state == mDeliveredState) return;
+            mDeliveredState = state;
+            deliver(state);
+        }
+
+        private void deliver(int state) {
+            mListener.onKeyboardStateChanged(state);
+            if (mCompleteCallback != null) {
+                mCompleteCallback.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package ink.kscope.xiaomikeyboardmanager.protocol;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameCaptureRingTest {
+
+    @Test
+    public void replay_wrappedRing_keepsNewestFramesInOrder() throws Exception {
+        File file = File.createTempFile("capture", ".bin");
+        file.deleteOnExit();
+        try (FrameCaptureRing ring = new FrameCaptureRing(file, 4)) {
+            for (int i = 0; i < 6; i++) {
+                byte[] frame = new byte[KeyboardProtocol.FRAME_SIZE];
+                frame[0] = (byte) i;
+                ring.record(FrameCaptureRing.DIRECTION_IN, frame, frame.length);
+            }
+            assertEquals(6, ring.getWrittenCount());
+        }
+        FrameReplayer replayer = new FrameReplayer(file);
+        assertEquals(4, replayer.getFrameCount());
+        List<Integer> firstBytes = new ArrayList<>();
+        replayer.replay((direction, frame, length, timestamp) -> firstBytes.add((int) frame[0]), false);
+        assertEquals(Arrays.asList(2, 3, 4, 5), firstBytes);
+    }
+}
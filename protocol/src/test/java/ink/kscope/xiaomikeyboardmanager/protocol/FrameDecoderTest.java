@@ -0,0 +1,135 @@
+package ink.kscope.xiaomikeyboardmanager.protocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+
+    private final List<Integer> mStates = new ArrayList<>();
+    private final List<Byte> mOtherCommands = new ArrayList<>();
+    private FrameDecoder mDecoder;
+
+    @Before
+    public void setUp() {
+        mDecoder = new FrameDecoder(new FrameDecoder.Listener() {
+            @Override
+            public void onConnectState(int status, byte[] frame, int offset) {
+                mStates.add(status);
+            }
+
+            @Override
+            public void onFrame(byte command, byte[] frame, int offset, int length) {
+                mOtherCommands.add(command);
+            }
+        });
+    }
+
+    private static int writeFrame(byte[] buf, int offset, byte command, int payloadLength) {
+        buf[offset] = KeyboardProtocol.REPORT_ID;
+        buf[offset + KeyboardProtocol.OFFSET_ADDRESS] = KeyboardProtocol.ADDRESS_KEYBOARD;
+        buf[offset + KeyboardProtocol.OFFSET_COMMAND] = command;
+        buf[offset + KeyboardProtocol.OFFSET_LENGTH] = (byte) payloadLength;
+        int length = KeyboardProtocol.frameLength(payloadLength);
+        buf[offset + length - 1] = KeyboardProtocol.checksum(buf, offset, length - 1);
+        return length;
+    }
+
+    private static int writeConnectState(byte[] buf, int offset, int state) {
+        buf[offset + KeyboardProtocol.OFFSET_CONNECT_STATE] = (byte) state;
+        return writeFrame(buf, offset, KeyboardProtocol.RESPONSE_CONNECT_STATE,
+                KeyboardProtocol.CONNECT_STATE_PAYLOAD_SIZE);
+    }
+
+    @Test
+    public void feed_twoFramesInOnePacket_decodesBoth() {
+        byte[] packet = new byte[KeyboardProtocol.FRAME_SIZE];
+        int length = writeConnectState(packet, 0, 0);
+        writeConnectState(packet, length, 35);
+        mDecoder.feed(packet, 0, packet.length);
+        assertEquals(2, mStates.size());
+        assertEquals(KeyboardProtocol.STATUS_DISCONNECTED, (int) mStates.get(0));
+        assertEquals(KeyboardProtocol.STATUS_CONNECTED, (int) mStates.get(1));
+        assertEquals(0, mDecoder.getSkippedByteCount());
+    }
+
+    @Test
+    public void feed_frameSplitAcrossPackets_isReassembled() {
+        byte[] stream = new byte[KeyboardProtocol.FRAME_SIZE];
+        int length = writeConnectState(stream, 0, 35);
+        for (int split = 1; split < length; split++) {
+            mStates.clear();
+            mDecoder.feed(stream, 0, split);
+            assertTrue(mStates.isEmpty());
+            mDecoder.feed(stream, split, length - split);
+            assertEquals("split at " + split, 1, mStates.size());
+        }
+    }
+
+    @Test
+    public void feed_garbageBeforeFrame_resynchronizes() {
+        byte[] packet = new byte[KeyboardProtocol.FRAME_SIZE];
+        packet[0] = 1;
+        packet[1] = KeyboardProtocol.REPORT_ID;
+        packet[2] = 7;
+        writeConnectState(packet, 3, 35);
+        mDecoder.feed(packet, 0, packet.length);
+        assertEquals(1, mStates.size());
+        assertEquals(3, mDecoder.getSkippedByteCount());
+    }
+
+    @Test
+    public void feed_badChecksum_dropsFrameWhenStrict() {
+        mDecoder.setStrict(true);
+        byte[] packet = new byte[KeyboardProtocol.FRAME_SIZE];
+        int length = writeConnectState(packet, 0, 35);
+        packet[length - 1]++;
+        mDecoder.feed(packet, 0, packet.length);
+        assertTrue(mStates.isEmpty());
+        assertEquals(1, mDecoder.getChecksumErrorCount());
+        assertEquals(0, mDecoder.getFrameCount());
+    }
+
+    @Test
+    public void feed_badChecksum_passedOnUncheckedByDefault() {
+        byte[] packet = new byte[KeyboardProtocol.FRAME_SIZE];
+        int length = writeConnectState(packet, 0, 35);
+        packet[length - 1]++;
+        mDecoder.feed(packet, 0, packet.length);
+        assertEquals(1, mStates.size());
+        assertEquals(KeyboardProtocol.STATUS_CONNECTED, (int) mStates.get(0));
+        assertEquals(1, mDecoder.getChecksumErrorCount());
+        assertEquals(1, mDecoder.getUncheckedFrameCount());
+    }
+
+    @Test
+    public void feed_fixedLayoutReport_isDecoded() {
+        // Header at offset 0 and the state at its fixed offset, nothing else
+        byte[] packet = new byte[KeyboardProtocol.FRAME_SIZE];
+        packet[0] = KeyboardProtocol.REPORT_ID;
+        packet[KeyboardProtocol.OFFSET_ADDRESS] = KeyboardProtocol.ADDRESS_KEYBOARD;
+        packet[KeyboardProtocol.OFFSET_COMMAND] = KeyboardProtocol.RESPONSE_CONNECT_STATE;
+        packet[KeyboardProtocol.OFFSET_CONNECT_STATE] = 35;
+        for (int i = 0; i < 3; i++) {
+            mDecoder.feed(packet, 0, packet.length);
+        }
+        assertEquals(3, mStates.size());
+        assertEquals(KeyboardProtocol.STATUS_CONNECTED, (int) mStates.get(2));
+        assertEquals(3, mDecoder.getUncheckedFrameCount());
+        assertEquals(0, mDecoder.getSkippedByteCount());
+    }
+
+    @Test
+    public void feed_otherCommand_reportedAsFrame() {
+        byte[] packet = new byte[KeyboardProtocol.FRAME_SIZE];
+        writeFrame(packet, 0, (byte) 0x30, 2);
+        mDecoder.feed(packet, 0, packet.length);
+        assertTrue(mStates.isEmpty());
+        assertEquals(1, mOtherCommands.size());
+        assertEquals(0x30, (byte) mOtherCommands.get(0));
+    }
+}
@@ -0,0 +1,62 @@
+package ink.kscope.xiaomikeyboardmanager.protocol;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class KeyboardProtocolTest {
+
+    private static byte[] connectStateFrame(int state) {
+        byte[] frame = new byte[KeyboardProtocol.FRAME_SIZE];
+        frame[0] = 38;
+        frame[2] = 56;
+        frame[KeyboardProtocol.OFFSET_COMMAND] = KeyboardProtocol.RESPONSE_CONNECT_STATE;
+        frame[KeyboardProtocol.OFFSET_CONNECT_STATE] = (byte) state;
+        return frame;
+    }
+
+    @Test
+    public void getConnectState_frameIsChecksummedAndPadded() {
+        byte[] frame = new byte[KeyboardProtocol.FRAME_SIZE];
+        assertEquals(KeyboardProtocol.FRAME_SIZE, KeyboardCommand.GET_CONNECT_STATE.writeTo(frame));
+        assertArrayEquals(new byte[]{78, 49, Byte.MIN_VALUE, 56, -95, 1, 1, (byte) 0xda},
+                Arrays.copyOf(frame, 8));
+        for (int i = 8; i < frame.length; i++) {
+            assertEquals(0, frame[i]);
+        }
+    }
+
+    @Test
+    public void getConnectState_isAnsweredByConnectStateResponse() {
+        assertEquals(KeyboardProtocol.RESPONSE_CONNECT_STATE,
+                KeyboardCommand.GET_CONNECT_STATE.getResponseCommand());
+    }
+
+    @Test
+    public void decodeConnectState() {
+        assertEquals(KeyboardProtocol.STATUS_CONNECTED,
+                KeyboardProtocol.decodeConnectState(connectStateFrame(35)));
+        assertEquals(KeyboardProtocol.STATUS_DISCONNECTED,
+                KeyboardProtocol.decodeConnectState(connectStateFrame(0)));
+        assertEquals(KeyboardProtocol.STATUS_TRX_CHECK_FAILED,
+                KeyboardProtocol.decodeConnectState(connectStateFrame(1)));
+        assertEquals(KeyboardProtocol.STATUS_PIN_CONNECT_FAILED,
+                KeyboardProtocol.decodeConnectState(connectStateFrame(67)));
+        byte[] overCharged = connectStateFrame(35);
+        overCharged[KeyboardProtocol.OFFSET_CHARGE_STATE] = 1;
+        assertEquals(KeyboardProtocol.STATUS_OVER_CHARGED,
+                KeyboardProtocol.decodeConnectState(overCharged));
+        assertEquals(KeyboardProtocol.STATUS_NOT_CONNECT_STATE,
+                KeyboardProtocol.decodeConnectState(new byte[KeyboardProtocol.FRAME_SIZE]));
+    }
+
+    @Test
+    public void isConnectStateReport() {
+        assertTrue(KeyboardProtocol.isConnectStateReport(connectStateFrame(35)));
+        byte[] frame = connectStateFrame(35);
+        frame[0] = 0;
+        assertFalse(KeyboardProtocol.isConnectStateReport(frame));
+    }
+}
@@ -0,0 +1,48 @@
+package ink.kscope.xiaomikeyboardmanager.protocol;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class KeyboardStateDispatcherTest {
+
+    @Test
+    public void setState_sameState_doesNotNotify() {
+        KeyboardStateDispatcher dispatcher = new KeyboardStateDispatcher(0);
+        List<Integer> states = new ArrayList<>();
+        dispatcher.addListener(states::add);
+        assertFalse(dispatcher.setState(0));
+        assertTrue(dispatcher.setState(1));
+        assertEquals(Arrays.asList(1), states);
+    }
+
+    @Test
+    public void executorListener_seesLatestStateOnly() {
+        KeyboardStateDispatcher dispatcher = new KeyboardStateDispatcher(0);
+        ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        List<Integer> states = new ArrayList<>();
+        dispatcher.addListener(states::add, queue::add);
+        dispatcher.setState(1);
+        dispatcher.setState(0);
+        dispatcher.setState(1);
+        assertEquals(1, queue.size());
+        queue.poll().run();
+        assertEquals(Arrays.asList(1), states);
+    }
+
+    @Test
+    public void removeListener_stopsNotifications() {
+        KeyboardStateDispatcher dispatcher = new KeyboardStateDispatcher(0);
+        List<Integer> states = new ArrayList<>();
+        KeyboardStateListener listener = states::add;
+        dispatcher.addListener(listener);
+        dispatcher.removeListener(listener);
+        dispatcher.setState(1);
+        assertTrue(states.isEmpty());
+    }
+}